@@ -1,8 +1,10 @@
 package com.jtorrent;
 
+import com.jtorrent.config.ClientOptions;
 import com.jtorrent.metaInfo.InfoHash;
 import com.jtorrent.metaInfo.TorrentMetaData;
 import com.jtorrent.peer.PeerManager;
+import com.jtorrent.piece.FileLayout;
 import com.jtorrent.tracker.Tracker;
 import com.jtorrent.metaInfo.ClientId;
 import com.jtorrent.validation.TorrentValidator;
@@ -11,6 +13,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
 
@@ -52,15 +55,15 @@ public class TorrentClient {
            String fileName = TorrentMetaData.fileName(torrent);
 
            log.info("Torrent info: name={}, size={}, pieces count={}, pieceLength={}", fileName, totalSize, pieceCount, pieceLength);
-           String outputPath = "D:/" + fileName;
+           FileLayout layout = FileLayout.of(Paths.get("D:/"), TorrentMetaData.files(torrent));
 
-           log.info("Torrent download path: {}", outputPath);
+           log.info("Torrent download path: {} ({} files)", layout.root(), layout.fileCount());
            byte[] peerId = ClientId.generateId();
 
            log.info("Connecting to Tracker: {}", announce);
            Tracker tracker = new Tracker();
            tracker.getPeers(announce, infoHash, torrent, peerId, peers -> {
-               PeerManager peerManager = new PeerManager(infoHash, peerId, pieceCount, pieceLength, totalSize, pieceHashes, outputPath);
+               PeerManager peerManager = new PeerManager(infoHash, peerId, pieceCount, pieceLength, pieceHashes, layout, ClientOptions.defaults());
                peerManager.connectToPeers(peers);
            });
         } catch (Exception e) {
@@ -0,0 +1,340 @@
+package com.jtorrent.config;
+
+import com.jtorrent.peer.FlushPolicy;
+import com.jtorrent.peer.SessionMode;
+import com.jtorrent.piece.AbandonPolicy;
+import com.jtorrent.piece.PieceWriteMode;
+import com.jtorrent.piece.StorageType;
+import com.jtorrent.piece.SyncPolicy;
+
+public class ClientOptions {
+
+    private SessionMode sessionMode = SessionMode.NIO;
+    private FlushPolicy flushPolicy = FlushPolicy.endOfBatch();
+    private PieceWriteMode pieceWriteMode = PieceWriteMode.MAPPED;
+    private StorageType storageType = StorageType.MAPPED;
+    private long bufferPoolBytes = 64L * 1024 * 1024;
+    private long mmapWindowBytes = 64L * 1024 * 1024;
+    private long maxMappedBytes = 2L * 1024 * 1024 * 1024;
+    private int diskQueuePieces = 32;
+    private SyncPolicy syncPolicy = SyncPolicy.periodic(30_000);
+    private boolean directBuffers = true;
+    private int hashThreads = Runtime.getRuntime().availableProcessors();
+    private int hashQueueCapacity = 2 * hashThreads;
+    private boolean trustResumeRecord = false;
+    private int initialPipelineDepth = 10;
+    private int minPipelineDepth = 2;
+    private int maxPipelineDepth = 256;
+    private int endgameBlocks = 256;
+    private long requestTimeoutSeconds = 30;
+    private long snubTimeoutSeconds = 20;
+    private int schedulerQueueCapacity = 8192;
+    private int maxOpenPieces = 32;
+    private long partialPieceBytes = 256L * 1024 * 1024;
+    private long abandonedPieceSeconds = 60;
+    private AbandonPolicy abandonPolicy = AbandonPolicy.SPILL;
+    private int maxConnections = 0;
+    private long peerChurnSeconds = 60;
+    private int churnPeers = 2;
+    private int uploadSlots = 4;
+    private int uploadQueueBlocks = 256;
+    private long pieceCacheBytes = 32L * 1024 * 1024;
+    private int readaheadPieces = 2;
+    private boolean streaming = false;
+    private int streamWindowPieces = 16;
+    private long streamBytesPerSecond = 1024 * 1024;
+
+    public static ClientOptions defaults() {
+        return new ClientOptions();
+    }
+
+    public SessionMode sessionMode() { return sessionMode; }
+
+    public ClientOptions sessionMode(SessionMode sessionMode) {
+        this.sessionMode = sessionMode;
+        return this;
+    }
+
+    public FlushPolicy flushPolicy() { return flushPolicy; }
+
+    public ClientOptions flushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+        return this;
+    }
+
+    public PieceWriteMode pieceWriteMode() { return pieceWriteMode; }
+
+    public ClientOptions pieceWriteMode(PieceWriteMode pieceWriteMode) {
+        this.pieceWriteMode = pieceWriteMode;
+        return this;
+    }
+
+    /** How the torrent's files are written and read; each torrent's options pick their own. */
+    public StorageType storageType() { return storageType; }
+
+    public ClientOptions storageType(StorageType storageType) {
+        this.storageType = storageType;
+        return this;
+    }
+
+    /** Upper bound on idle piece buffers kept for reuse. */
+    public long bufferPoolBytes() { return bufferPoolBytes; }
+
+    public ClientOptions bufferPoolBytes(long bufferPoolBytes) {
+        this.bufferPoolBytes = bufferPoolBytes;
+        return this;
+    }
+
+    /** Mapped storage: size of the windows the files are mapped in; at most 2 GiB. */
+    public long mmapWindowBytes() { return mmapWindowBytes; }
+
+    public ClientOptions mmapWindowBytes(long mmapWindowBytes) {
+        this.mmapWindowBytes = mmapWindowBytes;
+        return this;
+    }
+
+    /** Mapped storage: upper bound on file windows mapped at once; past it the least recently used window is flushed and dropped. */
+    public long maxMappedBytes() { return maxMappedBytes; }
+
+    public ClientOptions maxMappedBytes(long maxMappedBytes) {
+        this.maxMappedBytes = maxMappedBytes;
+        return this;
+    }
+
+    /**
+     * Verified pieces that may wait for the disk writer in buffered mode. New pieces
+     * stop being started once it is three quarters full, and hashing waits when it is full.
+     */
+    public int diskQueuePieces() { return diskQueuePieces; }
+
+    public ClientOptions diskQueuePieces(int diskQueuePieces) {
+        this.diskQueuePieces = diskQueuePieces;
+        return this;
+    }
+
+    /** When stored pieces are forced out to the device; by default every 30 seconds. */
+    public SyncPolicy syncPolicy() { return syncPolicy; }
+
+    public ClientOptions syncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+        return this;
+    }
+
+    public boolean directBuffers() { return directBuffers; }
+
+    public ClientOptions directBuffers(boolean directBuffers) {
+        this.directBuffers = directBuffers;
+        return this;
+    }
+
+    /** Threads hashing completed pieces; defaults to one per core. */
+    public int hashThreads() { return hashThreads; }
+
+    public ClientOptions hashThreads(int hashThreads) {
+        this.hashThreads = hashThreads;
+        return this;
+    }
+
+    /** Completed pieces allowed to wait for a hashing thread before the submitter hashes inline. */
+    public int hashQueueCapacity() { return hashQueueCapacity; }
+
+    public ClientOptions hashQueueCapacity(int hashQueueCapacity) {
+        this.hashQueueCapacity = hashQueueCapacity;
+        return this;
+    }
+
+    /**
+     * Skip the startup recheck when the resume record written at the last clean shutdown
+     * still matches the data file's size and modification time.
+     */
+    public boolean trustResumeRecord() { return trustResumeRecord; }
+
+    public ClientOptions trustResumeRecord(boolean trustResumeRecord) {
+        this.trustResumeRecord = trustResumeRecord;
+        return this;
+    }
+
+    /** Outstanding block requests per peer before its round-trip time and rate are known. */
+    public int initialPipelineDepth() { return initialPipelineDepth; }
+
+    public ClientOptions initialPipelineDepth(int initialPipelineDepth) {
+        this.initialPipelineDepth = initialPipelineDepth;
+        return this;
+    }
+
+    /** Lower bound of the per-peer request queue sized from the bandwidth-delay product. */
+    public int minPipelineDepth() { return minPipelineDepth; }
+
+    public ClientOptions minPipelineDepth(int minPipelineDepth) {
+        this.minPipelineDepth = minPipelineDepth;
+        return this;
+    }
+
+    /** Upper bound of the per-peer request queue; 256 blocks is 4 MiB in flight. */
+    public int maxPipelineDepth() { return maxPipelineDepth; }
+
+    public ClientOptions maxPipelineDepth(int maxPipelineDepth) {
+        this.maxPipelineDepth = maxPipelineDepth;
+        return this;
+    }
+
+    /**
+     * Endgame starts once every remaining block has been requested and at most this
+     * many are still outstanding; idle peers then duplicate those requests. 0 disables it.
+     */
+    public int endgameBlocks() { return endgameBlocks; }
+
+    public ClientOptions endgameBlocks(int endgameBlocks) {
+        this.endgameBlocks = endgameBlocks;
+        return this;
+    }
+
+    /** How long a block request may stay unanswered before it is handed to another peer. */
+    public long requestTimeoutSeconds() { return requestTimeoutSeconds; }
+
+    public ClientOptions requestTimeoutSeconds(long requestTimeoutSeconds) {
+        this.requestTimeoutSeconds = requestTimeoutSeconds;
+        return this;
+    }
+
+    /** A peer whose oldest outstanding request is older than this is considered to be snubbing us. */
+    public long snubTimeoutSeconds() { return snubTimeoutSeconds; }
+
+    public ClientOptions snubTimeoutSeconds(long snubTimeoutSeconds) {
+        this.snubTimeoutSeconds = snubTimeoutSeconds;
+        return this;
+    }
+
+    /** Peer events that may wait for the scheduler thread before the threads posting them are held back. */
+    public int schedulerQueueCapacity() { return schedulerQueueCapacity; }
+
+    public ClientOptions schedulerQueueCapacity(int schedulerQueueCapacity) {
+        this.schedulerQueueCapacity = schedulerQueueCapacity;
+        return this;
+    }
+
+    /**
+     * Pieces that may be partly downloaded at once. Peers help finish open pieces before
+     * starting new ones, and past this many they wait for one to complete instead.
+     */
+    public int maxOpenPieces() { return maxOpenPieces; }
+
+    public ClientOptions maxOpenPieces(int maxOpenPieces) {
+        this.maxOpenPieces = maxOpenPieces;
+        return this;
+    }
+
+    /**
+     * Buffered mode: upper bound on the memory held by pieces still being downloaded.
+     * Each piece's buffer is taken when the piece is started, and once they add up to
+     * this no new piece is started until one completes or is abandoned.
+     */
+    public long partialPieceBytes() { return partialPieceBytes; }
+
+    public ClientOptions partialPieceBytes(long partialPieceBytes) {
+        this.partialPieceBytes = partialPieceBytes;
+        return this;
+    }
+
+    /** A buffered piece with nothing requested that received no block for this long is abandoned. */
+    public long abandonedPieceSeconds() { return abandonedPieceSeconds; }
+
+    public ClientOptions abandonedPieceSeconds(long abandonedPieceSeconds) {
+        this.abandonedPieceSeconds = abandonedPieceSeconds;
+        return this;
+    }
+
+    /** Whether an abandoned piece's blocks are kept in storage or thrown away. */
+    public AbandonPolicy abandonPolicy() { return abandonPolicy; }
+
+    public ClientOptions abandonPolicy(AbandonPolicy abandonPolicy) {
+        this.abandonPolicy = abandonPolicy;
+        return this;
+    }
+
+    /** Peers connected at once; 0 uses the session mode's limit. */
+    public int maxConnections() { return maxConnections; }
+
+    public ClientOptions maxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    /**
+     * How often connections are rebalanced: peers delivering next to nothing, and the
+     * slowest few once every slot is taken, make way for candidates not yet tried. 0 disables it.
+     */
+    public long peerChurnSeconds() { return peerChurnSeconds; }
+
+    public ClientOptions peerChurnSeconds(long peerChurnSeconds) {
+        this.peerChurnSeconds = peerChurnSeconds;
+        return this;
+    }
+
+    /** Working connections replaced per churn round when every slot is taken. */
+    public int churnPeers() { return churnPeers; }
+
+    public ClientOptions churnPeers(int churnPeers) {
+        this.churnPeers = churnPeers;
+        return this;
+    }
+
+    /** Interested peers unchoked and uploaded to at once; the rest wait for a slot. 0 disables uploading. */
+    public int uploadSlots() { return uploadSlots; }
+
+    public ClientOptions uploadSlots(int uploadSlots) {
+        this.uploadSlots = uploadSlots;
+        return this;
+    }
+
+    /** Block requests a peer may have waiting to be served before further ones are dropped. */
+    public int uploadQueueBlocks() { return uploadQueueBlocks; }
+
+    public ClientOptions uploadQueueBlocks(int uploadQueueBlocks) {
+        this.uploadQueueBlocks = uploadQueueBlocks;
+        return this;
+    }
+
+    /** Upper bound on verified pieces kept in memory for uploading. */
+    public long pieceCacheBytes() { return pieceCacheBytes; }
+
+    public ClientOptions pieceCacheBytes(long pieceCacheBytes) {
+        this.pieceCacheBytes = pieceCacheBytes;
+        return this;
+    }
+
+    /** Pieces read into the cache ahead of a peer that requests pieces in order. 0 disables readahead. */
+    public int readaheadPieces() { return readaheadPieces; }
+
+    public ClientOptions readaheadPieces(int readaheadPieces) {
+        this.readaheadPieces = readaheadPieces;
+        return this;
+    }
+
+    /**
+     * Streaming mode: pieces just ahead of the read position are fetched first, against
+     * deadlines, while the rest still fill in rarest-first.
+     */
+    public boolean streaming() { return streaming; }
+
+    public ClientOptions streaming(boolean streaming) {
+        this.streaming = streaming;
+        return this;
+    }
+
+    /** How many pieces ahead of the read position are given deadlines in streaming mode. */
+    public int streamWindowPieces() { return streamWindowPieces; }
+
+    public ClientOptions streamWindowPieces(int streamWindowPieces) {
+        this.streamWindowPieces = streamWindowPieces;
+        return this;
+    }
+
+    /** Rate the reader is expected to consume the stream at; spaces out the window's deadlines. */
+    public long streamBytesPerSecond() { return streamBytesPerSecond; }
+
+    public ClientOptions streamBytesPerSecond(long streamBytesPerSecond) {
+        this.streamBytesPerSecond = streamBytesPerSecond;
+        return this;
+    }
+}
@@ -0,0 +1,9 @@
+package com.jtorrent.metaInfo;
+
+import java.util.List;
+
+/**
+ * One file of a torrent as the metainfo lists it. The path starts with the torrent's
+ * name, which for a multi-file torrent is the directory everything else lives in.
+ */
+public record TorrentFile(List<String> path, long length) {}
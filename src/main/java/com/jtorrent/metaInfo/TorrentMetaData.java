@@ -78,4 +78,33 @@ public final class TorrentMetaData {
     public static String fileName(Map<String, Object> torrent) {
         return (String) info(torrent).get("name");
     }
-}
\ No newline at end of file
+
+    /** The torrent's files in piece order; a single-file torrent has exactly one. */
+    public static List<TorrentFile> files(Map<String, Object> torrent) {
+        String name = fileName(torrent);
+        if(!isMultiFile(torrent)) {
+            return List.of(new TorrentFile(List.of(name), totalSize(torrent)));
+        }
+
+        // checked entry by entry rather than cast, since the decoder only knows it read lists and maps
+        if(!(info(torrent).get("files") instanceof List<?> files)) {
+            throw new IllegalArgumentException("Invalid torrent files");
+        }
+        List<TorrentFile> result = new ArrayList<>(files.size());
+        for(Object entry : files) {
+            if(!(entry instanceof Map<?, ?> file)
+                    || !(file.get("path") instanceof List<?> parts)
+                    || !(file.get("length") instanceof Number length)) {
+                throw new IllegalArgumentException("Invalid torrent file entry");
+            }
+            List<String> path = new ArrayList<>();
+            path.add(name);
+            for(Object part : parts) {
+                if(!(part instanceof String element)) throw new IllegalArgumentException("Invalid torrent file path");
+                path.add(element);
+            }
+            result.add(new TorrentFile(path, length.longValue()));
+        }
+        return result;
+    }
+}
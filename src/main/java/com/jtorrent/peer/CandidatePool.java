@@ -0,0 +1,202 @@
+package com.jtorrent.peer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every peer the tracker has handed us and what we have learned about it: how long
+ * its handshake took, how fast it sent us data and how often connecting to it failed.
+ * Free connection slots go to the best-scoring candidates, and the periodic churn
+ * hands back the slots of the slowest connections so that untried peers get a turn.
+ */
+class CandidatePool {
+
+    // below this a connection is not worth its slot once others are waiting
+    private static final double USELESS_BYTES_PER_SECOND = 1024;
+
+    enum State { CANDIDATE, CONNECTING, CONNECTED, RETIRED }
+
+    private static final class Entry {
+        State state = State.CANDIDATE;
+        int consecutiveFailures;
+        int failures;
+        long handshakeMillis = -1;
+        double bytesPerSecond;
+        long connectingSince;
+        long connectedSince;
+        long notBefore;
+        long sampledBytes;
+        long sampledAt;
+        PeerConnection connection;
+    }
+
+    private final Map<Peer, Entry> entries = new HashMap<>();
+    private final int maxFailures;
+    private long churned = 0;
+
+    CandidatePool(int maxFailures) {
+        this.maxFailures = maxFailures;
+    }
+
+    /** @return how many of the peers were not known before */
+    synchronized int addAll(Collection<Peer> peers) {
+        int added = 0;
+        for(Peer peer : peers) {
+            if(entries.putIfAbsent(peer, new Entry()) == null) added++;
+        }
+        return added;
+    }
+
+    /** Connections open or being opened. */
+    synchronized int activeCount() {
+        int active = 0;
+        for(Entry entry : entries.values()) {
+            if(entry.state == State.CONNECTING || entry.state == State.CONNECTED) active++;
+        }
+        return active;
+    }
+
+    /** Takes up to {@code count} of the best candidates that may be tried now and marks them connecting. */
+    synchronized List<Peer> take(int count, long now) {
+        List<Peer> taken = eligible(now);
+        if(taken.size() > count) taken = new ArrayList<>(taken.subList(0, count));
+        for(Peer peer : taken) {
+            Entry entry = entries.get(peer);
+            entry.state = State.CONNECTING;
+            entry.connectingSince = now;
+        }
+        return taken;
+    }
+
+    synchronized void established(PeerConnection connection, long now) {
+        Entry entry = entry(connection.getPeer());
+        if(entry.connectingSince > 0) entry.handshakeMillis = now - entry.connectingSince;
+        entry.state = State.CONNECTED;
+        entry.connection = connection;
+        entry.connectedSince = now;
+        entry.consecutiveFailures = 0;
+        entry.sampledBytes = 0;
+        entry.sampledAt = now;
+    }
+
+    /**
+     * Records a failed connection attempt or session.
+     *
+     * @return seconds to wait before trying the peer again, -1 if it failed too often to
+     * be tried again, or 0 if we had already let go of the connection and it doesn't count
+     */
+    synchronized long failed(PeerConnection connection, long now) {
+        Entry entry = entry(connection.getPeer());
+        boolean current = entry.state == State.CONNECTING
+                || (entry.state == State.CONNECTED && entry.connection == connection);
+        if(!current) return 0;
+        entry.connection = null;
+
+        entry.failures++;
+        entry.consecutiveFailures++;
+        if(entry.consecutiveFailures >= maxFailures) {
+            entry.state = State.RETIRED;
+            return -1;
+        }
+        long delaySeconds = (long) Math.pow(2, entry.consecutiveFailures) * 30;
+        entry.state = State.CANDIDATE;
+        entry.notBefore = now + delaySeconds * 1000;
+        return delaySeconds;
+    }
+
+    /** Puts a peer back among the candidates without holding it against it. */
+    synchronized void release(Peer peer) {
+        Entry entry = entry(peer);
+        entry.connection = null;
+        if(entry.state != State.RETIRED) entry.state = State.CANDIDATE;
+    }
+
+    /** Frees the slots of connections that have ended without a failure being reported. */
+    synchronized void pruneClosed() {
+        for(Entry entry : entries.values()) {
+            if(entry.state == State.CONNECTED && !entry.connection.isRunning()) {
+                entry.state = State.CANDIDATE;
+                entry.connection = null;
+            }
+        }
+    }
+
+    /**
+     * Updates a connection's download rate from the bytes it has delivered so far. The
+     * rate covers the time since the last update, so a peer that went quiet shows it.
+     */
+    synchronized void recordTransfer(Peer peer, long bytesReceived, long now) {
+        Entry entry = entries.get(peer);
+        if(entry == null || entry.state != State.CONNECTED || now <= entry.sampledAt) return;
+        entry.bytesPerSecond = Math.max(0, bytesReceived - entry.sampledBytes) * 1000.0 / (now - entry.sampledAt);
+        entry.sampledBytes = bytesReceived;
+        entry.sampledAt = now;
+    }
+
+    /**
+     * Picks connections to close so their slots go to waiting candidates: every
+     * connection that has had {@code minAgeMillis} to prove itself and still delivers
+     * next to nothing, and, if the slots are all taken, the slowest {@code slowest} of
+     * the rest. Never more than there are candidates to replace them.
+     */
+    synchronized List<PeerConnection> churn(long now, long minAgeMillis, int slowest, boolean full) {
+        int waiting = eligible(now).size();
+        if(waiting == 0) return List.of();
+
+        List<Entry> settled = new ArrayList<>();
+        for(Entry entry : entries.values()) {
+            if(entry.state == State.CONNECTED && now - entry.connectedSince >= minAgeMillis) settled.add(entry);
+        }
+        settled.sort(Comparator.comparingDouble(entry -> entry.bytesPerSecond));
+
+        List<PeerConnection> dropped = new ArrayList<>();
+        int extra = full ? slowest : 0;
+        for(Entry entry : settled) {
+            if(dropped.size() >= waiting) break;
+            if(entry.bytesPerSecond >= USELESS_BYTES_PER_SECOND) {
+                if(extra == 0) break;
+                extra--;
+            }
+            // the peer may be tried again later, with its poor rate counting against it
+            dropped.add(entry.connection);
+            entry.state = State.CANDIDATE;
+            entry.connection = null;
+            entry.notBefore = now + minAgeMillis;
+        }
+        churned += dropped.size();
+        return dropped;
+    }
+
+    synchronized long churnedCount() {
+        return churned;
+    }
+
+    synchronized int count(State state) {
+        int count = 0;
+        for(Entry entry : entries.values()) {
+            if(entry.state == state) count++;
+        }
+        return count;
+    }
+
+    private List<Peer> eligible(long now) {
+        List<Peer> eligible = new ArrayList<>();
+        for(Map.Entry<Peer, Entry> e : entries.entrySet()) {
+            if(e.getValue().state == State.CANDIDATE && e.getValue().notBefore <= now) eligible.add(e.getKey());
+        }
+        eligible.sort(Comparator.comparingDouble((Peer peer) -> score(peer, entries.get(peer))).reversed());
+        return eligible;
+    }
+
+    private static double score(Peer peer, Entry entry) {
+        return PeerSelector.score(peer, entry.bytesPerSecond, entry.handshakeMillis, entry.failures);
+    }
+
+    private Entry entry(Peer peer) {
+        return entries.computeIfAbsent(peer, p -> new Entry());
+    }
+}
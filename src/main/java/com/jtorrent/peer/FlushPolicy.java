@@ -0,0 +1,31 @@
+package com.jtorrent.peer;
+
+/**
+ * Decides when queued outbound messages are written to the socket.
+ * <ul>
+ *     <li>{@code IMMEDIATE} - every message is written as soon as it is queued</li>
+ *     <li>{@code END_OF_BATCH} - messages queued while corked are written together on uncork</li>
+ *     <li>{@code SIZE} - written once {@code sizeThreshold} bytes are queued, or after {@code maxDelayMillis}</li>
+ *     <li>{@code TIME} - written {@code maxDelayMillis} after the first message was queued</li>
+ * </ul>
+ */
+public record FlushPolicy(Mode mode, int sizeThreshold, long maxDelayMillis) {
+
+    public enum Mode { IMMEDIATE, END_OF_BATCH, SIZE, TIME }
+
+    public static FlushPolicy immediate() {
+        return new FlushPolicy(Mode.IMMEDIATE, 0, 0);
+    }
+
+    public static FlushPolicy endOfBatch() {
+        return new FlushPolicy(Mode.END_OF_BATCH, 0, 0);
+    }
+
+    public static FlushPolicy size(int sizeThreshold, long maxDelayMillis) {
+        return new FlushPolicy(Mode.SIZE, sizeThreshold, maxDelayMillis);
+    }
+
+    public static FlushPolicy time(long maxDelayMillis) {
+        return new FlushPolicy(Mode.TIME, 0, maxDelayMillis);
+    }
+}
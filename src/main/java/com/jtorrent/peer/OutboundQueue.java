@@ -0,0 +1,250 @@
+package com.jtorrent.peer;
+
+import com.jtorrent.piece.FileRegion;
+import com.jtorrent.util.HashedWheelTimer;
+import com.jtorrent.util.HashedWheelTimer.Timeout;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-connection queue of outbound messages. Producers enqueue from any thread and
+ * a single writer drains everything queued so far in one gathering write, so a
+ * pipeline of requests costs one syscall instead of one per message. While corked,
+ * messages are held back until {@link #uncork()} or a {@link FlushPolicy} threshold.
+ * <p>
+ * Besides buffers the queue takes {@link FileRegion}s, which a channel receives with
+ * {@code transferTo} and a stream through a copy.
+ */
+public class OutboundQueue {
+
+    private static final int MAX_BATCH = 64;
+    private static final int COPY_CHUNK = 8 * 1024;
+
+    private final FlushPolicy policy;
+    private final Runnable delayedFlush;
+    // ByteBuffers and FileRegions, in the order they are to be written
+    private final Queue<Object> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicInteger corkDepth = new AtomicInteger();
+    private final AtomicBoolean timerArmed = new AtomicBoolean();
+    // keeps the parts of one message (a piece header and its block) next to each other
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+
+    // owned by the single writer: messages taken off the queue but not fully written yet
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+    private int batchSize = 0;
+    private FileRegion region;
+    private byte[] copyBuffer;
+
+    private volatile Timeout flushTimer;
+
+    public OutboundQueue(FlushPolicy policy, Runnable delayedFlush) {
+        this.policy = policy;
+        this.delayedFlush = delayedFlush;
+    }
+
+    /**
+     * Queues a message and reports whether the policy wants it written now.
+     */
+    public boolean enqueue(ByteBuffer message) {
+        appendLock.lock();
+        try {
+            pending.add(message);
+        } finally {
+            appendLock.unlock();
+        }
+        return queued(message.remaining());
+    }
+
+    /**
+     * Queues one message made of several buffers, e.g. a piece header and the block it
+     * refers to. The parts are written back to back and the buffers are not copied.
+     */
+    public boolean enqueue(ByteBuffer... parts) {
+        return enqueue((Object[]) parts);
+    }
+
+    /**
+     * Queues one message whose body is read from files, e.g. a piece header followed by
+     * the regions holding its block.
+     */
+    public boolean enqueue(ByteBuffer header, FileRegion... regions) {
+        Object[] parts = new Object[regions.length + 1];
+        parts[0] = header;
+        System.arraycopy(regions, 0, parts, 1, regions.length);
+        return enqueue(parts);
+    }
+
+    private boolean enqueue(Object[] parts) {
+        long length = 0;
+        appendLock.lock();
+        try {
+            for(Object part : parts) {
+                pending.add(part);
+                length += part instanceof FileRegion region ? region.remaining() : ((ByteBuffer) part).remaining();
+            }
+        } finally {
+            appendLock.unlock();
+        }
+        return queued(length);
+    }
+
+    public void cork() {
+        corkDepth.incrementAndGet();
+    }
+
+    /**
+     * Leaves one level of corking and reports whether the queued batch should be written.
+     */
+    public boolean uncork() {
+        if(corkDepth.decrementAndGet() > 0) return false;
+        return switch (policy.mode()) {
+            case IMMEDIATE, END_OF_BATCH -> !isEmpty();
+            case SIZE -> queuedBytes.get() >= policy.sizeThreshold();
+            case TIME -> false;
+        };
+    }
+
+    public boolean isEmpty() {
+        return batchSize == 0 && region == null && pending.isEmpty();
+    }
+
+    /**
+     * Writes as much of the queue as the channel accepts in one gathering write.
+     *
+     * @return true if everything taken for this write went out, false if the channel is full
+     */
+    public boolean writeTo(GatheringByteChannel channel) throws IOException {
+        if(region == null) {
+            fillBatch();
+            if(batchSize > 0) return writeBatch(channel);
+            // buffers queued after a region wait until it is sent
+            if(!(pending.peek() instanceof FileRegion next)) return true;
+            pending.poll();
+            region = next;
+        }
+
+        long sent = region.transferTo(channel);
+        writes.increment();
+        queuedBytes.addAndGet(-sent);
+        if(region.hasRemaining()) return false;
+        region = null;
+        return true;
+    }
+
+    private boolean writeBatch(GatheringByteChannel channel) throws IOException {
+        long written = channel.write(batch, 0, batchSize);
+        writes.increment();
+        queuedBytes.addAndGet(-written);
+
+        int done = 0;
+        while(done < batchSize && !batch[done].hasRemaining()) done++;
+        System.arraycopy(batch, done, batch, 0, batchSize - done);
+        Arrays.fill(batch, batchSize - done, batchSize, null);
+        batchSize -= done;
+
+        return batchSize == 0;
+    }
+
+    /**
+     * Drains the whole queue into a buffered stream and flushes it once.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        Object next;
+        while((next = pending.poll()) != null) {
+            if(next instanceof FileRegion file) {
+                copyRegion(file, out);
+                continue;
+            }
+            ByteBuffer message = (ByteBuffer) next;
+            int length = message.remaining();
+            if(message.hasArray()) {
+                out.write(message.array(), message.arrayOffset() + message.position(), length);
+                message.position(message.limit());
+            } else {
+                // direct and read-only buffers have no accessible array, stage them through a reused chunk
+                if(copyBuffer == null) copyBuffer = new byte[COPY_CHUNK];
+                while(message.hasRemaining()) {
+                    int chunk = Math.min(copyBuffer.length, message.remaining());
+                    message.get(copyBuffer, 0, chunk);
+                    out.write(copyBuffer, 0, chunk);
+                }
+            }
+            queuedBytes.addAndGet(-length);
+        }
+        out.flush();
+        writes.increment();
+    }
+
+    private void copyRegion(FileRegion file, OutputStream out) throws IOException {
+        if(copyBuffer == null) copyBuffer = new byte[COPY_CHUNK];
+        ByteBuffer chunk = ByteBuffer.wrap(copyBuffer);
+        while(file.hasRemaining()) {
+            int read = file.read(chunk.clear());
+            out.write(copyBuffer, 0, read);
+            queuedBytes.addAndGet(-read);
+        }
+    }
+
+    public long messageCount() {
+        return messages.sum();
+    }
+
+    public long writeCount() {
+        return writes.sum();
+    }
+
+    public long writesSaved() {
+        return Math.max(0, messages.sum() - writes.sum());
+    }
+
+    public void close() {
+        Timeout timer = flushTimer;
+        if(timer != null) timer.cancel();
+    }
+
+    private boolean queued(long length) {
+        messages.increment();
+        long queued = queuedBytes.addAndGet(length);
+
+        return switch (policy.mode()) {
+            case IMMEDIATE -> true;
+            case END_OF_BATCH -> corkDepth.get() == 0;
+            case SIZE -> queued >= policy.sizeThreshold() || armTimer();
+            case TIME -> armTimer();
+        };
+    }
+
+    /** Takes queued buffers up to the next region. */
+    private void fillBatch() {
+        while(batchSize < batch.length && pending.peek() instanceof ByteBuffer message) {
+            pending.poll();
+            batch[batchSize++] = message;
+        }
+    }
+
+    private boolean armTimer() {
+        if(timerArmed.compareAndSet(false, true)) {
+            flushTimer = HashedWheelTimer.shared().schedule(() -> {
+                timerArmed.set(false);
+                delayedFlush.run();
+            }, policy.maxDelayMillis(), TimeUnit.MILLISECONDS);
+        }
+        return false;
+    }
+}
@@ -1,7 +1,10 @@
 package com.jtorrent.peer;
 
 
+import com.jtorrent.piece.FileRegion;
 import com.jtorrent.scheduler.RequestScheduler;
+import com.jtorrent.util.HashedWheelTimer;
+import com.jtorrent.util.HashedWheelTimer.Timeout;
 import com.jtorrent.validation.MessageValidator;
 import com.jtorrent.validation.MessageValidator.ParsedMessage;
 import com.jtorrent.exception.ValidationException;
@@ -10,22 +13,18 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-
-import java.net.InetSocketAddress;
-import java.net.Socket;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
+import static com.jtorrent.util.Buffers.allocate;
+
 
 public class PeerConnection implements AutoCloseable {
 
@@ -39,12 +38,15 @@ public class PeerConnection implements AutoCloseable {
     private int consecutiveErrors = 0;
 
     private final RequestScheduler scheduler;
+    // null when nothing is uploaded
+    private final UploadManager uploads;
     private final MessageValidator messageValidator;
 
     private static final int MAX_MESSAGE_SIZE = 256 * 1024;
     private static final int MAX_CONSECUTIVE_ERRORS = 5;
 
     private volatile boolean running = true;
+    private final AtomicBoolean closed = new AtomicBoolean();
 
     private boolean peerChoking = true;
     private boolean peerInterested = false;
@@ -52,16 +54,26 @@ public class PeerConnection implements AutoCloseable {
 
     private BitSet bitfield;
 
-    private Socket socket;
+    private PeerTransport transport;
     private InputStream in;
-    private OutputStream out;
 
     private final Map<Integer, Consumer<ByteBuffer>> handlers = new HashMap<>();
 
-    private ScheduledExecutorService keepAliveExecutor;
-    private ScheduledFuture<?> keepAliveTask;
+    private static final long KEEP_ALIVE_INTERVAL_SECONDS = 60;
+
+    private volatile Timeout keepAliveTask;
+
+    private final OutboundQueue outbound;
 
     public PeerConnection(Peer peer, byte[] infoHash, byte[] peerId, int pieceCount, int pieceLength, long totalSize, RequestScheduler scheduler) {
+        this(peer, infoHash, peerId, pieceCount, pieceLength, totalSize, scheduler, FlushPolicy.endOfBatch());
+    }
+
+    public PeerConnection(Peer peer, byte[] infoHash, byte[] peerId, int pieceCount, int pieceLength, long totalSize, RequestScheduler scheduler, FlushPolicy flushPolicy) {
+        this(peer, infoHash, peerId, pieceCount, pieceLength, totalSize, scheduler, null, flushPolicy);
+    }
+
+    public PeerConnection(Peer peer, byte[] infoHash, byte[] peerId, int pieceCount, int pieceLength, long totalSize, RequestScheduler scheduler, UploadManager uploads, FlushPolicy flushPolicy) {
         this.peer = peer;
         this.infoHash = infoHash;
         this.peerId = peerId;
@@ -69,43 +81,58 @@ public class PeerConnection implements AutoCloseable {
         this.pieceLength = pieceLength;
         this.totalSize = totalSize;
         this.scheduler = scheduler;
+        this.uploads = uploads;
         this.messageValidator = new MessageValidator(pieceCount, pieceLength, totalSize);
+        // delayed flushes fire on the timer thread, which must not block on a socket write
+        this.outbound = new OutboundQueue(flushPolicy, () -> Thread.startVirtualThread(this::flush));
         registerHandlers();
     }
 
     public void connect() throws IOException {
-        socket = new Socket();
-        socket.connect(new InetSocketAddress(peer.ip(), peer.port()), 5_000);
-        socket.setSoTimeout(120_000);
-        socket.setKeepAlive(true);
-
-        in = socket.getInputStream();
-        out= socket.getOutputStream();
+        SocketTransport socketTransport = new SocketTransport(peer);
+        transport = socketTransport;
+        in = socketTransport.input();
 
         log.info("Connected to peer {}", peer);
 
         startKeepAlive();
     }
 
+    /**
+     * Binds this connection to a transport owned by a {@link PeerEventLoop}.
+     * The event loop drives connect, handshake and framing itself and feeds
+     * complete messages into {@link #dispatch(ByteBuffer)}.
+     */
+    void attach(PeerTransport transport) {
+        this.transport = transport;
+    }
+
     private void startKeepAlive() {
-        keepAliveExecutor = Executors.newSingleThreadScheduledExecutor();
-        keepAliveTask = keepAliveExecutor.scheduleAtFixedRate(() -> {
+        keepAliveTask = HashedWheelTimer.shared().schedule(this::keepAlive, KEEP_ALIVE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void keepAlive() {
+        if(!running) return;
+        // the wheel thread must not block, the socket write runs on a virtual thread
+        Thread.startVirtualThread(() -> {
             try {
-                send(PeerMessageBuilder.buildKeepAlive());
+                send(PeerMessageBuilder.keepAlive());
             } catch (Exception e) {
                 closeQuietly();
             }
-        }, 60, 60, TimeUnit.SECONDS);
+        });
+        startKeepAlive();
     }
 
     public void handshake() throws IOException {
-        send(PeerMessageBuilder.buildHandshake(infoHash, peerId));
+        outbound.enqueue(handshakeMessage());
+        transport.flush(outbound);
         byte[] response = readFully(68);
         validateHandshake(response, infoHash, peerId);
         log.info("Handshake succeeded for peer {}", peer);
     }
 
-    private static void validateHandshake(byte[] response, byte[] expectedInfoHash, byte[] localPeerId) {
+    static void validateHandshake(byte[] response, byte[] expectedInfoHash, byte[] localPeerId) {
         if(response == null || response.length < 68) {
             throw new RuntimeException("Invalid handshake length");
         }
@@ -135,26 +162,7 @@ public class PeerConnection implements AutoCloseable {
     public void startMessageLoop() throws Exception {
         PeerMessageReader reader = new PeerMessageReader();
         try{
-            reader.read(in, message -> {
-                if(running) {
-                    try {
-                        handleMessage(message);
-                        consecutiveErrors = 0;
-                    } catch (IllegalStateException e) {
-                        log.error("Protocol violation from {}", peer, e);
-                        closeQuietly();
-                    }
-                    catch (Exception e) {
-                        consecutiveErrors++;
-                        log.error("Error handling message from {} - disconnecting", peer, e);
-
-                        if(consecutiveErrors >= MAX_CONSECUTIVE_ERRORS) {
-                            log.error("Consecutive errors, disconnecting from {}", peer, e);
-                            closeQuietly();
-                        }
-                    }
-                }
-            });
+            reader.read(in, this::dispatch);
         } catch (Exception e) {
             log.error("Message loop error for {}", peer, e);
             throw e;
@@ -163,7 +171,27 @@ public class PeerConnection implements AutoCloseable {
         }
     }
 
-    public void handleMessage(byte[] message) {
+    void dispatch(ByteBuffer message) {
+        if(!running) return;
+        try {
+            handleMessage(message);
+            consecutiveErrors = 0;
+        } catch (IllegalStateException e) {
+            log.error("Protocol violation from {}", peer, e);
+            closeQuietly();
+        }
+        catch (Exception e) {
+            consecutiveErrors++;
+            log.error("Error handling message from {} - disconnecting", peer, e);
+
+            if(consecutiveErrors >= MAX_CONSECUTIVE_ERRORS) {
+                log.error("Consecutive errors, disconnecting from {}", peer, e);
+                closeQuietly();
+            }
+        }
+    }
+
+    public void handleMessage(ByteBuffer message) {
         try {
             ParsedMessage parsed = messageValidator.validateAndParse(message);
 
@@ -187,6 +215,7 @@ public class PeerConnection implements AutoCloseable {
         handlers.put(0, b -> {
             peerChoking = true;
             log.debug("peer {} choked you", peer);
+            scheduler.onChoke(this);
         });
 
         //unchoke
@@ -200,23 +229,24 @@ public class PeerConnection implements AutoCloseable {
         handlers.put(2, b -> {
             peerInterested = true;
             log.debug("{} is interested", peer);
+            if(uploads != null) uploads.onInterested(this);
         });
 
         //not interested
         handlers.put(3, b -> {
             peerInterested = false;
             log.debug("{} is not interested", peer);
+            if(uploads != null) uploads.onNotInterested(this);
         });
 
         //have
         handlers.put(4, b -> {
             int pieceIndex = b.getInt();
-            if(bitfield != null) {
-                bitfield.set(pieceIndex);
-            } else {
+            if(bitfield == null) {
                 bitfield = new BitSet(pieceCount);
-                bitfield.set(pieceIndex);
             }
+            bitfield.set(pieceIndex);
+            scheduler.onHave(this, pieceIndex);
             log.debug("{} has piece {}", peer, pieceIndex);
         });
 
@@ -227,14 +257,20 @@ public class PeerConnection implements AutoCloseable {
                 throw new IllegalStateException("Duplicate bitfield from " + peer);
             }
 
-            byte[] raw = new byte[b.remaining()];
-            b.get(raw);
+            // wire order is high bit first, so piece 0 is bit 7 of the first byte; spare bits are ignored
+            BitSet pieces = new BitSet(pieceCount);
+            int base = b.position();
+            int bits = (int) Math.min(pieceCount, b.remaining() * 8L);
+            for(int i = 0; i < bits; i++) {
+                if((b.get(base + (i >>> 3)) & (0x80 >>> (i & 7))) != 0) pieces.set(i);
+            }
 
-            bitfield = BitSet.valueOf(raw);
+            bitfield = pieces;
+            scheduler.onBitfield(this, bitfield);
             log.debug("Received bitfield from {}", peer);
 
             if(!amInterested) {
-                send(PeerMessageBuilder.buildInterested());
+                send(PeerMessageBuilder.interested());
                 amInterested = true;
                 log.debug("Sent interested to {}", peer);
             }
@@ -247,6 +283,7 @@ public class PeerConnection implements AutoCloseable {
             int length = b.getInt();
 
             log.debug("{} requested piece: {} offset: {} length: {} ", peer, index, begin, length);
+            if(uploads != null) uploads.onRequest(this, index, begin, length);
         });
 
         //piece
@@ -257,10 +294,9 @@ public class PeerConnection implements AutoCloseable {
 
             int index = b.getInt();
             int begin = b.getInt();
-            byte[] block = new byte[b.remaining()];
-            b.get(block);
             log.debug("Received piece: {} offset: {} from {}", index, begin, peer);
-            scheduler.onBlockReceived(this, index, begin, block);
+            // b is a read-only view over the reader's buffer, only valid until this handler returns
+            scheduler.onBlockReceived(this, index, begin, b);
         });
 
         //cancel
@@ -270,14 +306,84 @@ public class PeerConnection implements AutoCloseable {
             int length = b.getInt();
 
             log.debug("{} cancelled request for piece {} offset {} length {}", peer, index, begin,length);
+            if(uploads != null) uploads.onCancel(this, index, begin, length);
         });
 
     }
 
-    public synchronized void send(byte[] message) {
+    public void send(byte[] message) {
+        send(ByteBuffer.wrap(message));
+    }
+
+    /**
+     * Queues an encoded message. The buffer is written as-is, so it must not be
+     * modified until it has gone out.
+     */
+    public void send(ByteBuffer message) {
+        if(closed.get() || transport == null) return;
+        if(outbound.enqueue(message)) {
+            flush();
+        }
+    }
+
+    /**
+     * Queues a message from a thread that must never wait on a socket, such as the
+     * scheduler's. An event-loop session writes from its selector anyway; a blocking
+     * socket is flushed on a virtual thread instead, like a delayed flush.
+     */
+    public void sendDetached(ByteBuffer message) {
+        if(closed.get() || transport == null) return;
+        if(outbound.enqueue(message)) {
+            if(transport.blocksOnFlush()) {
+                Thread.startVirtualThread(this::flush);
+            } else {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Queues a piece message whose block is referenced rather than copied; the header
+     * and the block leave in the same gathering write.
+     */
+    public void sendPiece(int index, int begin, ByteBuffer block) {
+        if(closed.get() || transport == null) return;
+        if(outbound.enqueue(PeerMessageBuilder.piece(index, begin, block))) {
+            flush();
+        }
+    }
+
+    /**
+     * Queues a piece message whose block is sent straight from the files holding it.
+     */
+    public void sendPiece(int index, int begin, FileRegion... block) {
+        if(closed.get() || transport == null) return;
+        int length = 0;
+        for(FileRegion region : block) length += (int) region.remaining();
+        ByteBuffer header = PeerMessageBuilder.encodePieceHeader(allocate(PeerMessageBuilder.PIECE_HEADER_LENGTH), index, begin, length).flip();
+        if(outbound.enqueue(header, block)) {
+            flush();
+        }
+    }
+
+    /**
+     * Holds back queued messages until the matching {@link #uncork()}, so a batch
+     * such as a request pipeline goes out in a single write.
+     */
+    public void cork() {
+        outbound.cork();
+    }
+
+    public void uncork() {
+        if(outbound.uncork()) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if(closed.get() || transport == null) return;
         try {
-            out.write(message);
-            out.flush();
+            transport.flush(outbound);
         } catch (IOException e) {
             log.warn("Send failed to peer {} - disconnecting", peer, e);
             closeQuietly();
@@ -303,23 +409,34 @@ public class PeerConnection implements AutoCloseable {
 
     public Peer getPeer() { return peer; }
 
+    OutboundQueue outbound() { return outbound; }
+
+    public long writesSaved() { return outbound.writesSaved(); }
+
+    ByteBuffer handshakeMessage() {
+        return PeerMessageBuilder.encodeHandshake(allocate(PeerMessageBuilder.HANDSHAKE_LENGTH), infoHash, peerId).flip();
+    }
+
+    byte[] getInfoHash() { return infoHash; }
+
+    byte[] getPeerId() { return peerId; }
+
+    public boolean isRunning() { return running; }
+
     @Override
     public void close() throws Exception {
+        if(!closed.compareAndSet(false, true)) return;
         running = false;
 
         if(keepAliveTask != null)
-            keepAliveTask.cancel(true);
-        if(keepAliveExecutor != null)
-            keepAliveExecutor.shutdown();
+            keepAliveTask.cancel();
+        outbound.close();
 
         scheduler.onPeerDisconnected(this);
+        if(uploads != null) uploads.onDisconnected(this);
 
-        log.info("Disconnected from peer {}", peer);
-        if(in != null) in.close();
-        if(out != null) out.close();
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
-        }
+        log.info("Disconnected from peer {} ({} messages sent in {} writes)", peer, outbound.messageCount(), outbound.writeCount());
+        if(transport != null) transport.close();
     }
 
     public void closeQuietly() {
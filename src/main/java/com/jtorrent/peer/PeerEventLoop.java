@@ -0,0 +1,406 @@
+package com.jtorrent.peer;
+
+import com.jtorrent.util.HashedWheelTimer;
+import com.jtorrent.util.HashedWheelTimer.Timeout;
+import com.jtorrent.util.NonBlockingThread;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static com.jtorrent.util.Buffers.allocate;
+
+/**
+ * Single-threaded selector loop that drives many peer connections with non-blocking
+ * channels: connect, handshake, message framing and writes all happen on the loop
+ * thread. Complete messages are handed to {@link PeerConnection#dispatch(ByteBuffer)},
+ * so the handler map and the scheduler callbacks stay the protocol layer on top.
+ * Deadlines and keep-alives are armed on the shared {@link HashedWheelTimer} and
+ * bounced back onto the loop thread when they fire.
+ * <p>
+ * The loop thread never waits on the layers above it. While they report being backed
+ * up, sessions stop reading: {@code OP_READ} is cleared on their keys and set again
+ * once the pressure is gone, so the peers' own TCP windows hold the data back.
+ */
+public class PeerEventLoop implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(PeerEventLoop.class);
+
+    private static final long CONNECT_TIMEOUT_MS = 5_000;
+    private static final long HANDSHAKE_TIMEOUT_MS = 20_000;
+    private static final long IDLE_TIMEOUT_MS = 120_000;
+    private static final long KEEP_ALIVE_INTERVAL_MS = 60_000;
+    private static final int MAX_READS_PER_EVENT = 4;
+    // how often paused sessions check whether they may read again
+    private static final long PAUSE_CHECK_MS = 10;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Consumer<PeerConnection> onEstablished;
+    private final BiConsumer<PeerConnection, String> onFailed;
+    private final BooleanSupplier backedUp;
+
+    private final Queue<Session> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Queue<Session> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final HashedWheelTimer timer = HashedWheelTimer.shared();
+    private final AtomicInteger sessions = new AtomicInteger();
+    // loop thread only
+    private final List<Session> paused = new ArrayList<>();
+    private final LongAdder readPauses = new LongAdder();
+
+    private volatile boolean running = true;
+
+    public PeerEventLoop(String name, Consumer<PeerConnection> onEstablished, BiConsumer<PeerConnection, String> onFailed) throws IOException {
+        this(name, onEstablished, onFailed, () -> false);
+    }
+
+    /**
+     * @param backedUp whether reading more now would make the loop wait, e.g. on a full
+     *                 scheduler queue, the hashing pool or the disk
+     */
+    public PeerEventLoop(String name, Consumer<PeerConnection> onEstablished, BiConsumer<PeerConnection, String> onFailed,
+                         BooleanSupplier backedUp) throws IOException {
+        this.selector = Selector.open();
+        this.onEstablished = onEstablished;
+        this.onFailed = onFailed;
+        this.backedUp = backedUp;
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void register(PeerConnection connection) {
+        pendingRegistrations.add(new Session(connection));
+        selector.wakeup();
+    }
+
+    public int sessionCount() {
+        return sessions.get();
+    }
+
+    /** Times a session stopped reading because the layers above were backed up. */
+    public long readPauses() {
+        return readPauses.sum();
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void run() {
+        NonBlockingThread.markCurrent();
+        while(running) {
+            try {
+                selector.select(paused.isEmpty() ? 0 : PAUSE_CHECK_MS);
+                registerPending();
+                runTasks();
+                resumePaused();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+
+                flushPending();
+            } catch (IOException e) {
+                log.error("Selector failure in {}", thread.getName(), e);
+            }
+        }
+        closeSessions();
+    }
+
+    private void registerPending() {
+        Session session;
+        while((session = pendingRegistrations.poll()) != null) {
+            try {
+                session.open();
+            } catch (IOException e) {
+                session.fail("I/O error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        Session session = (Session) key.attachment();
+        try {
+            if(key.isValid() && key.isConnectable()) session.finishConnect();
+            if(key.isValid() && key.isReadable()) session.onReadable();
+            if(key.isValid() && key.isWritable()) session.writeOut();
+        } catch (ClosedChannelException e) {
+            session.fail("I/O error: channel closed");
+        } catch (IOException e) {
+            session.fail("I/O error: " + e.getMessage());
+        } catch (Exception e) {
+            log.error("Session error for {}", session.connection.getPeer(), e);
+            session.fail("Unexpected error: " + e.getClass().getSimpleName());
+        }
+    }
+
+    private void flushPending() {
+        Session session;
+        while((session = pendingWrites.poll()) != null) {
+            try {
+                session.writeOut();
+            } catch (IOException e) {
+                session.fail("I/O error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void resumePaused() {
+        if(paused.isEmpty() || backedUp.getAsBoolean()) return;
+        for(Session session : paused) {
+            session.resumeReading();
+        }
+        paused.clear();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.error("Event loop task failed", e);
+            }
+        }
+    }
+
+    private void closeSessions() {
+        for(SelectionKey key : selector.keys()) {
+            Session session = (Session) key.attachment();
+            if(session != null) session.connection.closeQuietly();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.debug("Error closing selector", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(5_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private enum State { CONNECTING, HANDSHAKING, ESTABLISHED }
+
+    private final class Session implements PeerTransport {
+        private final PeerConnection connection;
+        private final ByteBuffer handshake = allocate(68);
+        private final PeerMessageReader reader = new PeerMessageReader();
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        private SocketChannel channel;
+        private SelectionKey key;
+        private volatile State state = State.CONNECTING;
+        private boolean readPaused;
+        private long lastRead;
+        private volatile long lastWrite;
+
+        private Timeout deadlineTimer;
+        private Timeout idleTimer;
+        private Timeout keepAliveTimer;
+
+        Session(PeerConnection connection) {
+            this.connection = connection;
+        }
+
+        void open() throws IOException {
+            Peer peer = connection.getPeer();
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+
+            connection.attach(this);
+            sessions.incrementAndGet();
+            key = channel.register(selector, 0, this);
+            deadlineTimer = onLoop(this::onDeadline, CONNECT_TIMEOUT_MS);
+
+            log.info("Connecting to peer {}", peer);
+            if(channel.connect(new InetSocketAddress(peer.ip(), peer.port()))) {
+                onConnected();
+            } else {
+                key.interestOps(SelectionKey.OP_CONNECT);
+            }
+        }
+
+        void finishConnect() throws IOException {
+            if(channel.finishConnect()) {
+                onConnected();
+            }
+        }
+
+        private void onConnected() throws IOException {
+            state = State.HANDSHAKING;
+            deadlineTimer.cancel();
+            deadlineTimer = onLoop(this::onDeadline, HANDSHAKE_TIMEOUT_MS);
+            lastRead = System.currentTimeMillis();
+            key.interestOps(SelectionKey.OP_READ);
+
+            log.info("Connected to peer {}, handshake started", connection.getPeer());
+            connection.outbound().enqueue(connection.handshakeMessage());
+            writeOut();
+        }
+
+        void onReadable() throws IOException {
+            lastRead = System.currentTimeMillis();
+
+            if(state == State.HANDSHAKING) {
+                if(channel.read(handshake) == -1) {
+                    throw new IOException("Stream closed while reading");
+                }
+                if(!handshake.hasRemaining()) {
+                    PeerConnection.validateHandshake(handshake.array(), connection.getInfoHash(), connection.getPeerId());
+                    state = State.ESTABLISHED;
+                    deadlineTimer.cancel();
+                    idleTimer = onLoop(this::checkIdle, IDLE_TIMEOUT_MS);
+                    keepAliveTimer = onLoop(this::keepAlive, KEEP_ALIVE_INTERVAL_MS);
+                    log.info("Session established with Peer {}", connection.getPeer());
+                    onEstablished.accept(connection);
+                }
+                return;
+            }
+
+            for(int i = 0; i < MAX_READS_PER_EVENT && connection.isRunning(); i++) {
+                if(backedUp.getAsBoolean()) {
+                    pauseReading();
+                    return;
+                }
+                int read = reader.readFrom(channel, connection::dispatch);
+                if(read == -1) {
+                    finished.set(true);
+                    connection.closeQuietly();
+                    return;
+                }
+                if(read == 0) return;
+            }
+        }
+
+        private void pauseReading() {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            readPaused = true;
+            paused.add(this);
+            readPauses.increment();
+        }
+
+        void resumeReading() {
+            readPaused = false;
+            if(!key.isValid()) return;
+            // time spent paused was our doing, not the peer going quiet
+            lastRead = System.currentTimeMillis();
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        private Timeout onLoop(Runnable task, long delayMs) {
+            return timer.schedule(() -> execute(task), delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        private void onDeadline() {
+            if(state != State.ESTABLISHED) fail("Connection timed out");
+        }
+
+        private void checkIdle() {
+            if(finished.get()) return;
+            long idle = readPaused ? 0 : System.currentTimeMillis() - lastRead;
+            if(idle >= IDLE_TIMEOUT_MS) {
+                fail("Connection timed out");
+            } else {
+                idleTimer = onLoop(this::checkIdle, IDLE_TIMEOUT_MS - idle);
+            }
+        }
+
+        private void keepAlive() {
+            if(finished.get()) return;
+            long quiet = System.currentTimeMillis() - lastWrite;
+            if(quiet >= KEEP_ALIVE_INTERVAL_MS) {
+                connection.send(PeerMessageBuilder.keepAlive());
+                quiet = 0;
+            }
+            keepAliveTimer = onLoop(this::keepAlive, KEEP_ALIVE_INTERVAL_MS - quiet);
+        }
+
+        @Override
+        public void flush(OutboundQueue queue) {
+            if(Thread.currentThread() == thread) {
+                try {
+                    writeOut();
+                } catch (IOException e) {
+                    fail("I/O error: " + e.getMessage());
+                }
+            } else if(writeScheduled.compareAndSet(false, true)) {
+                pendingWrites.add(this);
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public boolean blocksOnFlush() {
+            return false;
+        }
+
+        void writeOut() throws IOException {
+            writeScheduled.set(false);
+            if(state == State.CONNECTING || !key.isValid()) return;
+
+            OutboundQueue queue = connection.outbound();
+            while(!queue.isEmpty()) {
+                boolean drained = queue.writeTo(channel);
+                lastWrite = System.currentTimeMillis();
+                if(!drained) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        void fail(String reason) {
+            if(!finished.compareAndSet(false, true)) return;
+            onFailed.accept(connection, reason);
+            connection.closeQuietly();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finished.set(true);
+            if(deadlineTimer != null) deadlineTimer.cancel();
+            if(idleTimer != null) idleTimer.cancel();
+            if(keepAliveTimer != null) keepAliveTimer.cancel();
+            if(channel != null && channel.isOpen()) {
+                sessions.decrementAndGet();
+                channel.close();
+            }
+        }
+    }
+}
@@ -1,25 +1,34 @@
 package com.jtorrent.peer;
 
+import com.jtorrent.config.ClientOptions;
 import com.jtorrent.piece.BlockTracker;
+import com.jtorrent.piece.FileLayout;
+import com.jtorrent.piece.DiskWriter;
+import com.jtorrent.piece.MappedStorage;
+import com.jtorrent.piece.FilePriority;
+import com.jtorrent.piece.PieceCache;
 import com.jtorrent.piece.PieceManager;
+import com.jtorrent.piece.PieceVerifier;
 import com.jtorrent.statistics.ProgressBar;
 import com.jtorrent.scheduler.RequestScheduler;
+import com.jtorrent.util.BufferPool;
+import com.jtorrent.util.HashedWheelTimer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.SocketTimeoutException;
+import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.*;
 
 public class PeerManager {
 
     private static final Logger log = LoggerFactory.getLogger(PeerManager.class);
 
-    private static final int MAX_PEERS = 30;
     private static final int MAX_PEER_FAILURES = 3;
+    private static final int IO_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
 
     private final byte[] infoHash;
     private final byte[] peerId;
@@ -30,48 +39,191 @@ public class PeerManager {
     private final BlockTracker blockTracker;
     private final RequestScheduler requestScheduler;
     private final PieceManager pieceManager;
+    private final UploadManager uploads;
+    private final ClientOptions options;
+    private final SessionMode mode;
     private final ExecutorService peerPool;
+    private final PeerEventLoop[] eventLoops;
+    private final Semaphore sessionPermits;
+    private int nextLoop = 0;
 
-    private final Map<Peer, Integer> connectionFailures= new ConcurrentHashMap<>();
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private final CandidatePool candidates = new CandidatePool(MAX_PEER_FAILURES);
+    private final int connectionSlots;
+    private final ScheduledExecutorService scheduler;
 
     public PeerManager(byte[] infoHash, byte[] peerId, int pieceCount, int pieceLength, long totalSize, List<byte[]> pieceHashes, String outputPath) {
+        this(infoHash, peerId, pieceCount, pieceLength, totalSize, pieceHashes, outputPath, ClientOptions.defaults());
+    }
+
+    public PeerManager(byte[] infoHash, byte[] peerId, int pieceCount, int pieceLength, long totalSize, List<byte[]> pieceHashes, String outputPath, ClientOptions options) {
+        this(infoHash, peerId, pieceCount, pieceLength, pieceHashes, FileLayout.singleFile(Paths.get(outputPath), totalSize), options);
+    }
+
+    public PeerManager(byte[] infoHash, byte[] peerId, int pieceCount, int pieceLength, List<byte[]> pieceHashes, FileLayout layout, ClientOptions options) {
+        this.options = options;
+        this.mode = options.sessionMode();
         this.infoHash = infoHash;
         this.peerId = peerId;
         this.pieceCount = pieceCount;
         this.pieceLength = pieceLength;
-        this.totalSize = totalSize;
+        this.totalSize = layout.totalSize();
 
         try {
-            this.pieceManager = new PieceManager(pieceCount, pieceLength, pieceHashes, totalSize, outputPath);
+            this.pieceManager = PieceManager.open(pieceCount, pieceLength, pieceHashes, layout, options);
         } catch (IOException e) {
-            log.error("Unable to create output file at {}", outputPath);
+            log.error("Unable to create output file at {}", layout.root());
             throw new RuntimeException("Error while creating output file: " + e.getMessage());
         }
         this.blockTracker = new BlockTracker(pieceCount, pieceLength, totalSize);
-        this.requestScheduler = new RequestScheduler(blockTracker, pieceManager);
+        this.requestScheduler = new RequestScheduler(blockTracker, pieceManager, options);
+        this.uploads = new UploadManager(pieceManager, options);
+        pieceManager.addVerifiedListener(uploads::onPieceVerified);
+
 
+        // retries only hand the peer back to openSession, so one platform timer thread serves every mode
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("peer-retry").factory());
+        this.sessionPermits = new Semaphore(mode.maxPeers());
+        this.connectionSlots = options.maxConnections() > 0 ? Math.min(options.maxConnections(), mode.maxPeers()) : mode.maxPeers();
 
-        this.peerPool = Executors.newFixedThreadPool(MAX_PEERS);
+        switch (mode) {
+            case NIO -> {
+                this.peerPool = null;
+                this.eventLoops = startEventLoops();
+            }
+            case VIRTUAL_THREAD -> {
+                this.peerPool = Executors.newThreadPerTaskExecutor(threadFactory("peer"));
+                this.eventLoops = new PeerEventLoop[0];
+            }
+            default -> {
+                this.peerPool = Executors.newFixedThreadPool(mode.maxPeers());
+                this.eventLoops = new PeerEventLoop[0];
+            }
+        }
 
         startProgressMonitor();
         log.info("Progress Monitoring started");
+        if(options.peerChurnSeconds() > 0) {
+            scheduler.scheduleWithFixedDelay(this::churnPeers, options.peerChurnSeconds(), options.peerChurnSeconds(), TimeUnit.SECONDS);
+        }
     }
 
     public void connectToPeers(List<Peer> peers) {
         log.info("Received {} peers from tracker", peers.size());
         Collections.shuffle(peers);
-        peers.stream()
-                .filter(PeerSelector::isValid)
-                .sorted(PeerSelector::peerPriority)
-                .limit(MAX_PEERS)
-                .forEach(peer -> peerPool.submit(() -> startSession(peer)));
-        log.info("Attempting connections up to {} peers,", MAX_PEERS);
+        int added = candidates.addAll(peers.stream().filter(PeerSelector::isValid).toList());
+        log.info("{} new candidates, attempting connections up to {} peers", added, connectionSlots);
+        fillSlots();
+    }
+
+    /** Connects the best candidates that may be tried now until every slot is taken. */
+    private void fillSlots() {
+        int free = connectionSlots - candidates.activeCount();
+        if(free <= 0) return;
+        candidates.take(free, System.currentTimeMillis()).forEach(this::openSession);
+    }
+
+    /**
+     * Refreshes every connection's measured rate, closes those not worth their slot
+     * and hands the slots to fresh candidates, so the connections drift towards the
+     * fastest peers in the swarm.
+     */
+    private void churnPeers() {
+        try {
+            candidates.pruneClosed();
+            long now = System.currentTimeMillis();
+            for(RequestScheduler.PipelineStats stats : requestScheduler.pipelineStats()) {
+                candidates.recordTransfer(stats.peer(), stats.bytesReceived(), now);
+            }
+
+            boolean full = candidates.activeCount() >= connectionSlots;
+            List<PeerConnection> dropped = candidates.churn(now, TimeUnit.SECONDS.toMillis(options.peerChurnSeconds()), options.churnPeers(), full);
+            for(PeerConnection connection : dropped) {
+                log.info("Dropping slow peer {} to try another", connection.getPeer());
+                connection.closeQuietly();
+            }
+            fillSlots();
+        } catch (Exception e) {
+            log.error("Peer churn failed", e);
+        }
+    }
+
+    /** True once every piece has been downloaded and verified. */
+    public boolean isComplete() {
+        return pieceManager.isComplete();
+    }
+
+    /**
+     * Changes how much a file is wanted. Pieces of higher priority files are picked
+     * first, and a download is complete once every piece not skipped is in.
+     */
+    public void setFilePriority(int fileIndex, FilePriority priority) {
+        pieceManager.setFilePriority(fileIndex, priority);
+        requestScheduler.onPrioritiesChanged();
+    }
+
+    /**
+     * Streaming: tells the scheduler where the reader is, so the pieces just past
+     * {@code offset} are fetched next.
+     */
+    public void setReadPosition(long offset) {
+        requestScheduler.moveReadCursor((int) (offset / pieceLength));
+    }
+
+    private PeerEventLoop[] startEventLoops() {
+        PeerEventLoop[] loops = new PeerEventLoop[IO_THREADS];
+        try {
+            for(int i = 0; i < loops.length; i++) {
+                loops[i] = new PeerEventLoop("peer-io-" + i, this::established, this::handleFailures, requestScheduler::isBackedUp);
+            }
+        } catch (IOException e) {
+            log.error("Unable to open selector for peer I/O");
+            throw new RuntimeException("Error while starting peer event loops: " + e.getMessage());
+        }
+        log.info("Started {} peer I/O threads", loops.length);
+        return loops;
+    }
+
+    /** Starts a session with one peer, whatever the tracker filter would make of it. */
+    void openSession(Peer peer) {
+        if(mode == SessionMode.NIO) {
+            PeerEventLoop loop;
+            synchronized (this) {
+                loop = eventLoops[nextLoop];
+                nextLoop = (nextLoop + 1) % eventLoops.length;
+            }
+            loop.register(newConnection(peer));
+        } else if(mode == SessionMode.VIRTUAL_THREAD) {
+            peerPool.submit(() -> {
+                if(!sessionPermits.tryAcquire()) {
+                    log.debug("Session limit of {} reached, skipping {}", mode.maxPeers(), peer);
+                    candidates.release(peer);
+                    return;
+                }
+                try {
+                    startSession(peer);
+                } finally {
+                    sessionPermits.release();
+                }
+            });
+        } else {
+            peerPool.submit(() -> startSession(peer));
+        }
+    }
+
+    private PeerConnection newConnection(Peer peer) {
+        return new PeerConnection(peer, infoHash, peerId, pieceCount, pieceLength, totalSize, requestScheduler, uploads, options.flushPolicy());
+    }
+
+    private ThreadFactory threadFactory(String name) {
+        if(mode == SessionMode.VIRTUAL_THREAD) {
+            return Thread.ofVirtual().name(name).factory();
+        }
+        return Thread.ofPlatform().name(name).daemon().factory();
     }
 
     public void startSession(Peer peer) {
         Thread.currentThread().setName("peer-" + peer);
-        PeerConnection connection = new PeerConnection(peer, infoHash, peerId, pieceCount, pieceLength, totalSize, requestScheduler);
+        PeerConnection connection = newConnection(peer);
         try {
             log.info("Connecting to peer {}", peer);
             connection.connect();
@@ -79,42 +231,61 @@ public class PeerManager {
             log.info("Handshake started with peer {} ", peer);
             connection.handshake();
 
-            connectionFailures.remove(peer);
+            established(connection);
 
             log.info("Session established with Peer {}", peer);
             connection.startMessageLoop();
         } catch (SocketTimeoutException e) {
-            handleFailures(peer, "Connection timed out");
+            handleFailures(connection, "Connection timed out");
         } catch (IOException e) {
-            handleFailures(peer, "I/O error: " + e.getMessage());
+            handleFailures(connection, "I/O error: " + e.getMessage());
         }
         catch (Exception e) {
-            handleFailures(peer, "Unexpected error: " + e.getClass().getSimpleName());
+            handleFailures(connection, "Unexpected error: " + e.getClass().getSimpleName());
         }
         finally {
             connection.closeQuietly();
         }
     }
 
-    private void handleFailures(Peer peer, String reason) {
-        int failures = connectionFailures.merge(peer, 1, Integer::sum);
-        log.warn("Connection failed for {} ({}/{}, {}", peer, failures, MAX_PEER_FAILURES, reason);
+    /** Runs once the handshake is done, before any other message is read or sent. */
+    private void established(PeerConnection connection) {
+        candidates.established(connection, System.currentTimeMillis());
+        uploads.onConnected(connection);
+    }
+
+    private void handleFailures(PeerConnection connection, String reason) {
+        Peer peer = connection.getPeer();
+        long delaySeconds = candidates.failed(connection, System.currentTimeMillis());
+        if(delaySeconds == 0) {
+            log.debug("Session with {} ended after it was dropped ({})", peer, reason);
+            return;
+        }
 
-        if(failures < MAX_PEER_FAILURES) {
-            int delaySeconds = (int) Math.pow(2, failures) * 30;
-            log.info("Retrying connection with {}, in {} seconds", peer, delaySeconds);
-            scheduler.schedule(() -> startSession(peer), delaySeconds, TimeUnit.SECONDS);
+        log.warn("Connection failed for {} ({})", peer, reason);
+        if(delaySeconds > 0) {
+            log.info("Retrying connection with {} in {} seconds", peer, delaySeconds);
+            scheduler.schedule(this::fillSlots, delaySeconds, TimeUnit.SECONDS);
         } else {
             log.info("Connection failed for {} after {} retries.", peer, MAX_PEER_FAILURES);
         }
+        // the slot can go to another candidate straight away
+        if(!scheduler.isShutdown()) scheduler.execute(this::fillSlots);
     }
 
     private void startProgressMonitor() {
-        Thread monitor = new Thread(() -> {
+        Thread monitor = threadFactory("progress-monitor").newThread(() -> {
             while(!pieceManager.isComplete()) {
                 try {
                     Thread.sleep(5000);
-                    ProgressBar.showProgressBar(pieceManager.getDownloaded(), totalSize);
+                    ProgressBar.showProgressBar(pieceManager.getDownloaded(), pieceManager.wantedBytes());
+                    if(log.isDebugEnabled()) {
+                        logStatistics();
+                    }
+                    if(log.isTraceEnabled()) {
+                        requestScheduler.pipelineStats().forEach(stats -> log.trace("Pipeline {}: depth={}, in flight={}, rate={} KiB/s, rtt={} ms, snubbed={}",
+                                stats.peer(), stats.depth(), stats.inFlight(), (long) stats.bytesPerSecond() / 1024, (long) stats.rttMillis(), stats.snubbed()));
+                    }
                 } catch (InterruptedException e) {
                     log.debug("Progress monitor interrupted");
                     Thread.currentThread().interrupt();
@@ -124,13 +295,79 @@ public class PeerManager {
             log.info("Download Complete");
             shutdown();
         });
-        monitor.setName("progress-monitor");
-        monitor.setDaemon(true);
         monitor.start();
     }
 
+    /** Logs every counter of the download in one message; only called when debug logging is on. */
+    private void logStatistics() {
+        HashedWheelTimer timer = HashedWheelTimer.shared();
+        BufferPool pool = pieceManager.getBufferPool();
+        DiskWriter writer = pieceManager.getDiskWriter();
+        PieceVerifier verifier = pieceManager.getVerifier();
+        PieceCache cache = uploads.cache();
+        long readPauses = 0;
+        for(PeerEventLoop loop : eventLoops) {
+            readPauses += loop.readPauses();
+        }
+        String mapped = pieceManager.getStorage() instanceof MappedStorage storage
+                ? storage.mappedBytes() + " bytes, maps=" + storage.mapCount() + ", unmaps=" + storage.unmapCount()
+                : "n/a";
+
+        log.debug("""
+                        Statistics
+                          peers: connected={}, connecting={}, candidates={}, retired={}, churned={}, read pauses={}
+                          scheduler: queued events={}, handled={}, full waits={}, overflowed={}
+                          timers: pending={}, expired={}, cancelled={}
+                          requests: timed out={}, dropped by choke={}, snubs={}, unrequested blocks={}
+                          pieces: open={}, shared joins={}, partial={} of {} bytes, spilled={}, dropped={}, abandoned={}, memory stalls={}
+                          endgame: duplicate requests={}, cancels={}, wasted={} bytes
+                          streaming: deadline misses={}, duplicate requests={}
+                          buffers: hits={}, misses={}, pooled={} bytes, in use={} bytes
+                          mapped files: {}
+                          disk: queued pieces={}, queued block bytes={}, pieces written={}, blocks written={}, writes={}, failed={}, syncs={}, full waits={}, stalls={}
+                          verification: queued={}, verified={}, failed={}, handed off={}, avg={} ms, max={} ms
+                          uploads: {} bytes at {} KiB/s, blocks={}, from file={}, refused={}, cancelled={}, readaheads={}, unchoked={}
+                          piece cache: {} bytes, hits={}, misses={}, hit ratio={}%""",
+                candidates.count(CandidatePool.State.CONNECTED), candidates.count(CandidatePool.State.CONNECTING),
+                candidates.count(CandidatePool.State.CANDIDATE), candidates.count(CandidatePool.State.RETIRED), candidates.churnedCount(), readPauses,
+                requestScheduler.queuedEvents(), requestScheduler.eventsHandled(), requestScheduler.eventQueueFullWaits(), requestScheduler.overflowedEvents(),
+                timer.pendingCount(), timer.expiredCount(), timer.cancelledCount(),
+                requestScheduler.timedOutRequests(), requestScheduler.chokeDroppedRequests(), requestScheduler.snubCount(), requestScheduler.unrequestedBlocks(),
+                requestScheduler.openPieces(), requestScheduler.sharedPieceJoins(), pieceManager.partialBytes(), options.partialPieceBytes(),
+                pieceManager.spilledCount(), pieceManager.droppedCount(), requestScheduler.abandonedPieces(), requestScheduler.memoryStalls(),
+                requestScheduler.endgameRequests(), requestScheduler.cancelsSent(), requestScheduler.wastedBytes(),
+                requestScheduler.deadlineMisses(), requestScheduler.streamingDuplicates(),
+                pool.hitCount(), pool.missCount(), pool.pooledBytes(), pool.outstandingBytes(),
+                mapped,
+                writer.queueDepth(), writer.queuedBlockBytes(), writer.piecesWritten(), writer.blocksWritten(), writer.writeCount(),
+                writer.failedCount(), writer.syncCount(), writer.fullWaits(), requestScheduler.diskStalls(),
+                verifier.queueDepth(), verifier.verifiedCount(), verifier.failedCount(), verifier.handedOffCount(),
+                Math.round(verifier.averageLatencyMillis()), Math.round(verifier.maxLatencyMillis()),
+                uploads.uploadedBytes(), (long) uploads.bytesPerSecond() / 1024, uploads.blocksSent(), uploads.blocksFromFile(),
+                uploads.refusedRequests(), uploads.cancelledRequests(), uploads.readaheadCount(), uploads.unchokedCount(),
+                cache.cachedBytes(), cache.hitCount(), cache.missCount(), Math.round(cache.hitRatio() * 100));
+    }
+
     public void shutdown() {
         log.info("Shutting down");
+        scheduler.shutdownNow();
+        requestScheduler.shutdown();
+        for(PeerEventLoop loop : eventLoops) {
+            loop.close();
+        }
+        uploads.close();
+        if(peerPool != null) {
+            shutdownPeerPool();
+        }
+
+        try {
+            pieceManager.close();
+        } catch (Exception e) {
+            System.err.println("Error closing piece manager - "  + e.getMessage());
+        }
+    }
+
+    private void shutdownPeerPool() {
         peerPool.shutdown();
         try {
             if (!peerPool.awaitTermination(5, TimeUnit.SECONDS)) {
@@ -142,11 +379,5 @@ public class PeerManager {
             peerPool.shutdownNow();
             Thread.currentThread().interrupt();
         }
-
-        try {
-            pieceManager.close();
-        } catch (Exception e) {
-            System.err.println("Error closing piece manager - "  + e.getMessage());
-        }
     }
 }
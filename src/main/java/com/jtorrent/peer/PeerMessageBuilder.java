@@ -1,89 +1,179 @@
 package com.jtorrent.peer;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import static com.jtorrent.util.Buffers.allocate;
-import static com.jtorrent.util.Buffers.message;
 
+/**
+ * Encodes peer wire messages. The {@code encode*} methods write straight into a
+ * caller-supplied buffer, so a batch of messages can share one buffer, and the
+ * payload-less messages are pre-encoded once and handed out as read-only views.
+ * Piece messages are split into a 13-byte header and the block itself, so the block
+ * goes out through a gathering write without being copied.
+ */
 public final class PeerMessageBuilder {
 
     private static final String PROTOCOL = "BitTorrent protocol";
 
+    public static final int HANDSHAKE_LENGTH = 68;
+    public static final int HAVE_LENGTH = 9;
+    public static final int REQUEST_LENGTH = 17;
+    public static final int CANCEL_LENGTH = 17;
+    public static final int PIECE_HEADER_LENGTH = 13;
+
+    private static final ByteBuffer KEEP_ALIVE = constant(0, -1);
+    private static final ByteBuffer CHOKE = constant(1, 0);
+    private static final ByteBuffer UNCHOKE = constant(1, 1);
+    private static final ByteBuffer INTERESTED = constant(1, 2);
+    private static final ByteBuffer NOT_INTERESTED = constant(1, 3);
+
     private PeerMessageBuilder() {}
 
-    public static byte[] buildHandshake(byte[] infoHash, byte[] peerId) {
-        return allocate(68)
-                .put((byte) PROTOCOL.length())
+    // Pre-encoded messages: each call returns an independent view over the same bytes
+
+    public static ByteBuffer keepAlive() {
+        return KEEP_ALIVE.duplicate();
+    }
+
+    public static ByteBuffer choke() {
+        return CHOKE.duplicate();
+    }
+
+    public static ByteBuffer unchoke() {
+        return UNCHOKE.duplicate();
+    }
+
+    public static ByteBuffer interested() {
+        return INTERESTED.duplicate();
+    }
+
+    public static ByteBuffer notInterested() {
+        return NOT_INTERESTED.duplicate();
+    }
+
+    // Encoding into caller buffers: each method appends one message at dst's position
+
+    public static ByteBuffer encodeHandshake(ByteBuffer dst, byte[] infoHash, byte[] peerId) {
+        return dst.put((byte) PROTOCOL.length())
                 .put(PROTOCOL.getBytes())
-                .put(new byte[8])          // reserved
+                .putLong(0)                // reserved
                 .put(infoHash)
-                .put(peerId)
-                .array();
+                .put(peerId);
+    }
+
+    public static ByteBuffer encodeHave(ByteBuffer dst, int pieceIndex) {
+        return dst.putInt(5)
+                .put((byte) 4)
+                .putInt(pieceIndex);
+    }
+
+    public static ByteBuffer encodeBitfield(ByteBuffer dst, byte[] bitfield) {
+        return dst.putInt(bitfield.length + 1)
+                .put((byte) 5)
+                .put(bitfield);
+    }
+
+    public static ByteBuffer encodeRequest(ByteBuffer dst, int index, int begin, int length) {
+        return dst.putInt(13)
+                .put((byte) 6)
+                .putInt(index)
+                .putInt(begin)
+                .putInt(length);
+    }
+
+    public static ByteBuffer encodePieceHeader(ByteBuffer dst, int index, int begin, int blockLength) {
+        return dst.putInt(blockLength + 9)
+                .put((byte) 7)
+                .putInt(index)
+                .putInt(begin);
+    }
+
+    public static ByteBuffer encodeCancel(ByteBuffer dst, int index, int begin, int length) {
+        return dst.putInt(13)
+                .put((byte) 8)
+                .putInt(index)
+                .putInt(begin)
+                .putInt(length);
+    }
+
+    public static ByteBuffer encodePort(ByteBuffer dst, int port) {
+        return dst.putInt(3)
+                .put((byte) 9)
+                .putShort((short) port);
+    }
+
+    /**
+     * Builds a piece message as a header followed by a view of the block, ready for
+     * a gathering write. The block's bytes are shared, not copied, so the caller must
+     * not reuse them until the message has been written.
+     */
+    public static ByteBuffer[] piece(int index, int begin, ByteBuffer block) {
+        ByteBuffer header = encodePieceHeader(allocate(PIECE_HEADER_LENGTH), index, begin, block.remaining()).flip();
+        return new ByteBuffer[] { header, block.slice() };
+    }
+
+    // Array builders, kept for callers that need a standalone copy of a message
+
+    public static byte[] buildHandshake(byte[] infoHash, byte[] peerId) {
+        return encodeHandshake(allocate(HANDSHAKE_LENGTH), infoHash, peerId).array();
     }
 
     public static byte[] buildKeepAlive() {
-        return message(0).array();
+        return copyOf(KEEP_ALIVE);
     }
 
     public static byte[] buildChoke() {
-        return message(1).put((byte) 0).array();
+        return copyOf(CHOKE);
     }
 
     public static byte[] buildUnchoke() {
-        return message(1).put((byte) 1).array();
+        return copyOf(UNCHOKE);
     }
 
     public static byte[] buildInterested() {
-        return message(1).put((byte) 2).array();
+        return copyOf(INTERESTED);
     }
 
     public static byte[] buildUnInterested() {
-        return message(1).put((byte) 3).array();
+        return copyOf(NOT_INTERESTED);
     }
 
     public static byte[] buildHave(int pieceIndex) {
-        return message(5)
-                .put((byte) 4)
-                .putInt(pieceIndex)
-                .array();
+        return encodeHave(allocate(HAVE_LENGTH), pieceIndex).array();
     }
 
     public static byte[] buildBitfield(byte[] bitfield) {
-        return message(bitfield.length + 1)
-                .put((byte) 5)
-                .put(bitfield)
-                .array();
+        return encodeBitfield(allocate(bitfield.length + 5), bitfield).array();
     }
 
     public static byte[] buildRequest(int index, int begin, int length) {
-        return message(13)
-                .put((byte) 6)
-                .putInt(index)
-                .putInt(begin)
-                .putInt(length)
-                .array();
+        return encodeRequest(allocate(REQUEST_LENGTH), index, begin, length).array();
     }
 
     public static byte[] buildPiece(int index, int begin, byte[] block) {
-        return message(block.length + 9)
-                .put((byte) 7)
-                .putInt(index)
-                .putInt(begin)
+        return encodePieceHeader(allocate(PIECE_HEADER_LENGTH + block.length), index, begin, block.length)
                 .put(block)
                 .array();
     }
 
     public static byte[] buildCancel(int index, int begin, int length) {
-        return message(13)
-                .put((byte) 8)
-                .putInt(index)
-                .putInt(begin)
-                .putInt(length)
-                .array();
+        return encodeCancel(allocate(CANCEL_LENGTH), index, begin, length).array();
     }
 
     public static byte[] buildPort(int port) {
-        return message(3)
-                .put((byte) 9)
-                .putShort((short) port)
-                .array();
+        return encodePort(allocate(7), port).array();
+    }
+
+    private static ByteBuffer constant(int length, int id) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4 + length).order(ByteOrder.BIG_ENDIAN).putInt(length);
+        if(id >= 0) buffer.put((byte) id);
+        return buffer.flip().asReadOnlyBuffer();
+    }
+
+    private static byte[] copyOf(ByteBuffer constant) {
+        byte[] copy = new byte[constant.remaining()];
+        constant.duplicate().get(copy);
+        return copy;
     }
 }
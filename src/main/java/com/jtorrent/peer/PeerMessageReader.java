@@ -3,58 +3,134 @@ package com.jtorrent.peer;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.function.Consumer;
 
-import static com.jtorrent.util.Buffers.allocate;
-
+/**
+ * Splits a peer byte stream into length-prefixed frames. Bytes are read straight
+ * into one reusable direct buffer and every complete frame is handed out as a
+ * read-only view over that buffer, so no array is allocated or copied per message.
+ * The view is only valid for the duration of the callback.
+ */
 public class PeerMessageReader {
 
-    private static final int MAX_BUFFER_SIZE = 256 * 1024;
-    private static final int MAX_BLOCK_SIZE = 256 * 1024;
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final int MIN_FREE_SPACE = 8 * 1024;
+    private static final int MAX_MESSAGE_SIZE = 256 * 1024;
 
-    private ByteBuffer buffer = allocate(64 * 1024);
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+    private ByteBuffer view = buffer.asReadOnlyBuffer();
 
-    public void read(InputStream in, Consumer<byte[]> callback) throws Exception {
-        byte[] temp = new byte[4096];
-        int bytesRead;
+    // start of the first unconsumed frame; buffer.position() marks the end of buffered data
+    private int readIndex = 0;
+    // full size of a frame whose header is buffered but whose body is not, 0 if none
+    private int pendingFrame = 0;
 
-        while((bytesRead = in.read(temp)) != -1) {
-            checkCapacity(bytesRead);
-            buffer.put(temp, 0, bytesRead);
-            buffer.flip();
+    public void read(InputStream in, Consumer<ByteBuffer> callback) throws IOException {
+        // not Channels.newChannel: its read holds a monitor across the blocking read, which pins a virtual thread
+        ReadableByteChannel channel = new StreamChannel(in);
+        while(readFrom(channel, callback) != -1) {
+            // keep reading until the peer closes the stream
+        }
+    }
 
-            while (buffer.remaining() >= 4) {
-                buffer.mark();
-                int length = buffer.getInt();
+    /**
+     * Performs a single read from the channel and dispatches every complete message
+     * that is now buffered. Partial messages are kept for the next call.
+     *
+     * @return the number of bytes read, or -1 once the channel reached end-of-stream
+     */
+    public int readFrom(ReadableByteChannel channel, Consumer<ByteBuffer> callback) throws IOException {
+        ensureSpace();
+        int bytesRead = channel.read(buffer);
+        if(bytesRead > 0) {
+            dispatch(callback);
+        }
+        return bytesRead;
+    }
 
-                if(length < 0 || length > MAX_BLOCK_SIZE) {
-                    throw new IOException("Invalid length: " + length);
-                }
+    public int capacity() {
+        return buffer.capacity();
+    }
 
-                if (buffer.remaining() < length) {
-                    buffer.reset();
-                    break;
-                }
+    private void dispatch(Consumer<ByteBuffer> callback) throws IOException {
+        int writeIndex = buffer.position();
+        pendingFrame = 0;
 
-                byte[] message = new byte[length + 4];
-                buffer.reset();
-                buffer.get(message);
+        while(writeIndex - readIndex >= 4) {
+            int length = buffer.getInt(readIndex);
 
-                callback.accept(message);
+            if(length < 0 || length > MAX_MESSAGE_SIZE) {
+                throw new IOException("Invalid length: " + length);
             }
+
+            int frameSize = length + 4;
+            if(writeIndex - readIndex < frameSize) {
+                pendingFrame = frameSize;
+                break;
+            }
+
+            view.clear();
+            view.position(readIndex).limit(readIndex + frameSize);
+            readIndex += frameSize;
+
+            callback.accept(view);
+        }
+
+        if(readIndex == writeIndex) {
+            buffer.clear();
+            readIndex = 0;
+        }
+    }
+
+    private void ensureSpace() {
+        int writeIndex = buffer.position();
+        boolean pendingFits = readIndex + pendingFrame <= buffer.capacity();
+        if(buffer.capacity() - writeIndex >= MIN_FREE_SPACE && pendingFits) return;
+
+        int unconsumed = writeIndex - readIndex;
+        int required = Math.max(pendingFrame, unconsumed) + MIN_FREE_SPACE;
+
+        if(required > buffer.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(Integer.highestOneBit(required - 1) << 1);
+            grown.put(buffer.duplicate().position(readIndex).limit(writeIndex));
+            buffer = grown;
+            view = buffer.asReadOnlyBuffer();
+        } else {
+            buffer.position(readIndex).limit(writeIndex);
             buffer.compact();
         }
+        readIndex = 0;
     }
-    private void checkCapacity(int incoming) throws IOException {
-        if(buffer.remaining() < incoming) {
-            if(buffer.capacity() >= MAX_BUFFER_SIZE) {
-                throw new IOException("Buffer Overflow");
+
+    /** Unsynchronized channel view of a stream; only the session's own thread reads from it. */
+    private static final class StreamChannel implements ReadableByteChannel {
+        private final InputStream in;
+        private final byte[] chunk = new byte[MIN_FREE_SPACE];
+        private boolean open = true;
+
+        StreamChannel(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int n = in.read(chunk, 0, Math.min(chunk.length, dst.remaining()));
+            if(n > 0) {
+                dst.put(chunk, 0, n);
             }
-            ByteBuffer newBuffer = ByteBuffer.allocate(buffer.capacity() * 2);
-            buffer.flip();
-            newBuffer.put(buffer);
-            buffer = newBuffer;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            open = false;
+            in.close();
         }
     }
 }
-
@@ -40,6 +40,19 @@ public class PeerSelector {
         return Integer.compare(scorePeer(a), scorePeer(b));
     }
 
+    /**
+     * How promising a peer is, higher being better. Measured download rate counts most
+     * (one point per KiB/s); a slow handshake and past failures count against it. A
+     * peer never tried scores on its port alone, which puts it above peers known to be
+     * slow or unreliable.
+     */
+    static double score(Peer peer, double bytesPerSecond, long handshakeMillis, int failures) {
+        double score = bytesPerSecond / 1024 - scorePeer(peer);
+        if(handshakeMillis > 0) score -= handshakeMillis / 100.0;
+        score -= 50.0 * failures;
+        return score;
+    }
+
     private static int scorePeer(Peer peer) {
         int score = 0;
         score += portPenalty(peer.port());
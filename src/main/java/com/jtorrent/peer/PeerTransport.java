@@ -0,0 +1,19 @@
+package com.jtorrent.peer;
+
+import java.io.IOException;
+
+interface PeerTransport {
+
+    /**
+     * Writes out everything currently held in the connection's outbound queue.
+     */
+    void flush(OutboundQueue queue) throws IOException;
+
+    /**
+     * Whether {@link #flush} writes to the socket on the calling thread and may wait
+     * on it, rather than handing the write to a thread of its own.
+     */
+    boolean blocksOnFlush();
+
+    void close() throws IOException;
+}
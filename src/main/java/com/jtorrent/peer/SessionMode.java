@@ -0,0 +1,17 @@
+package com.jtorrent.peer;
+
+public enum SessionMode {
+    THREAD_PER_PEER(30),
+    VIRTUAL_THREAD(2000),
+    NIO(1000);
+
+    private final int maxPeers;
+
+    SessionMode(int maxPeers) {
+        this.maxPeers = maxPeers;
+    }
+
+    public int maxPeers() {
+        return maxPeers;
+    }
+}
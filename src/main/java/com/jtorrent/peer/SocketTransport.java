@@ -0,0 +1,56 @@
+package com.jtorrent.peer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+
+class SocketTransport implements PeerTransport {
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    SocketTransport(Peer peer) throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(peer.ip(), peer.port()), 5_000);
+        socket.setSoTimeout(120_000);
+        socket.setKeepAlive(true);
+
+        in = socket.getInputStream();
+        out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+    }
+
+    InputStream input() {
+        return in;
+    }
+
+    @Override
+    public void flush(OutboundQueue queue) throws IOException {
+        // a monitor held across socket I/O would pin a virtual thread to its carrier
+        writeLock.lock();
+        try {
+            queue.writeTo(out);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean blocksOnFlush() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+        out.close();
+        if(!socket.isClosed()) {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package com.jtorrent.peer;
+
+import com.jtorrent.config.ClientOptions;
+import com.jtorrent.piece.FileRegion;
+import com.jtorrent.piece.PieceCache;
+import com.jtorrent.piece.PieceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serves the pieces we have to the peers we are connected to. Each connection
+ * advertises our pieces as soon as it is established and every piece verified after
+ * that. Interested peers are unchoked while upload slots are free and wait their turn
+ * otherwise.
+ * <p>
+ * Requests are checked and queued per peer on the reading thread, and each peer's
+ * queue is worked off on a virtual thread of its own, so neither disk reads nor a slow
+ * socket hold up the network. A block comes from the {@link PieceCache} when its piece
+ * is there and otherwise straight from the file with {@code transferTo}; storage
+ * without files to offer reads the whole piece into the cache instead. A peer reading
+ * sequentially has the next few pieces read into the cache ahead of its requests.
+ */
+public class UploadManager implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(UploadManager.class);
+
+    // larger requests are refused, as most clients do
+    private static final int MAX_REQUEST_LENGTH = 128 * 1024;
+    private static final long RATE_SAMPLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final PieceManager pieceManager;
+    private final int pieceCount;
+    private final int uploadSlots;
+    private final int maxQueuedRequests;
+    private final int readaheadPieces;
+    private final PieceCache cache;
+    private final ExecutorService readers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("upload-", 0).factory());
+
+    private final Map<PeerConnection, PeerUploads> peers = new ConcurrentHashMap<>();
+    // pieces being read into the cache ahead of requests
+    private final Set<Integer> loading = ConcurrentHashMap.newKeySet();
+
+    // guarded by chokeLock
+    private final ReentrantLock chokeLock = new ReentrantLock();
+    private final Set<PeerConnection> unchoked = new HashSet<>();
+    private final Deque<PeerConnection> waiting = new ArrayDeque<>();
+
+    private final LongAdder uploadedBytes = new LongAdder();
+    private final LongAdder blocksSent = new LongAdder();
+    private final LongAdder blocksFromFile = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder readaheads = new LongAdder();
+
+    // guarded by rateLock
+    private final ReentrantLock rateLock = new ReentrantLock();
+    private long sampledAt = System.nanoTime();
+    private long sampledBytes = 0;
+    private double bytesPerSecond = 0;
+
+    public UploadManager(PieceManager pieceManager, ClientOptions options) {
+        this.pieceManager = pieceManager;
+        this.pieceCount = pieceManager.getPieceCount();
+        this.uploadSlots = options.uploadSlots();
+        this.maxQueuedRequests = options.uploadQueueBlocks();
+        this.readaheadPieces = options.readaheadPieces();
+        this.cache = new PieceCache(options.pieceCacheBytes());
+    }
+
+    /**
+     * Tells a newly established connection which pieces we have. Must come before
+     * anything else is sent on it.
+     */
+    public void onConnected(PeerConnection peer) {
+        PeerUploads uploads = new PeerUploads(peer);
+        peers.put(peer, uploads);
+
+        BitSet have = pieceManager.getCompletedPieces();
+        if(!have.isEmpty()) {
+            peer.send(PeerMessageBuilder.buildBitfield(toWire(have)));
+        }
+        uploads.advertised = true;
+
+        // pieces verified while the bitfield was on its way were skipped by onPieceVerified
+        BitSet missed = pieceManager.getCompletedPieces();
+        missed.andNot(have);
+        for(int i = missed.nextSetBit(0); i >= 0; i = missed.nextSetBit(i + 1)) {
+            peer.send(PeerMessageBuilder.buildHave(i));
+        }
+        if(!peer.isRunning()) peers.remove(peer);
+    }
+
+    /**
+     * Announces a newly verified piece to every connection that has had our bitfield.
+     * The messages go out from a virtual thread, since a blocking socket must not hold
+     * up the thread that stored the piece.
+     */
+    public void onPieceVerified(int pieceIndex) {
+        byte[] have = PeerMessageBuilder.buildHave(pieceIndex);
+        execute(() -> {
+            for(PeerUploads uploads : peers.values()) {
+                if(uploads.advertised) uploads.peer.send(have);
+            }
+        });
+    }
+
+    public void onInterested(PeerConnection peer) {
+        PeerUploads uploads = peers.get(peer);
+        if(uploads == null) return;
+
+        boolean unchoke = false;
+        chokeLock.lock();
+        try {
+            if(unchoked.contains(peer) || waiting.contains(peer)) return;
+            if(unchoked.size() < uploadSlots) {
+                unchoked.add(peer);
+                unchoke = true;
+            } else {
+                waiting.add(peer);
+            }
+        } finally {
+            chokeLock.unlock();
+        }
+        if(unchoke) unchoke(uploads);
+    }
+
+    /** A peer that lost interest is choked, so its slot goes to the next one waiting. */
+    public void onNotInterested(PeerConnection peer) {
+        if(releaseSlot(peer)) peer.send(PeerMessageBuilder.choke());
+    }
+
+    public void onDisconnected(PeerConnection peer) {
+        releaseSlot(peer);
+        peers.remove(peer);
+    }
+
+    /**
+     * Queues a request from a peer we unchoked. Requests while choked, for pieces we
+     * don't have, for oversized blocks or past the peer's queue limit are dropped.
+     */
+    public void onRequest(PeerConnection peer, int pieceIndex, int begin, int length) {
+        PeerUploads uploads = peers.get(peer);
+        if(uploads == null || !uploads.unchoked) {
+            refuse(peer, pieceIndex, begin, "it is choked");
+        } else if(length > MAX_REQUEST_LENGTH) {
+            refuse(peer, pieceIndex, begin, "the block is too large");
+        } else if(!pieceManager.hasPiece(pieceIndex)) {
+            refuse(peer, pieceIndex, begin, "we don't have the piece");
+        } else if(!uploads.add(new Request(pieceIndex, begin, length))) {
+            refuse(peer, pieceIndex, begin, "its queue is full");
+        }
+    }
+
+    public void onCancel(PeerConnection peer, int pieceIndex, int begin, int length) {
+        PeerUploads uploads = peers.get(peer);
+        if(uploads != null && uploads.remove(new Request(pieceIndex, begin, length))) {
+            cancelled.increment();
+        }
+    }
+
+    private void refuse(PeerConnection peer, int pieceIndex, int begin, String reason) {
+        refused.increment();
+        log.debug("Ignoring request for {}:{} from {}, {}", pieceIndex, begin, peer.getPeer(), reason);
+    }
+
+    private void unchoke(PeerUploads uploads) {
+        // set first, since the peer's requests may come in as soon as the message is out
+        uploads.unchoked = true;
+        uploads.peer.send(PeerMessageBuilder.unchoke());
+        log.debug("Unchoked {}", uploads.peer.getPeer());
+    }
+
+    /**
+     * Takes the peer off the unchoked and waiting lists, drops its queued requests and
+     * unchokes the next peer waiting if a slot came free.
+     *
+     * @return true if the peer was unchoked
+     */
+    private boolean releaseSlot(PeerConnection peer) {
+        boolean wasUnchoked;
+        PeerConnection next = null;
+        chokeLock.lock();
+        try {
+            waiting.remove(peer);
+            wasUnchoked = unchoked.remove(peer);
+            if(wasUnchoked) {
+                next = waiting.poll();
+                if(next != null) unchoked.add(next);
+            }
+        } finally {
+            chokeLock.unlock();
+        }
+
+        PeerUploads uploads = peers.get(peer);
+        if(uploads != null) {
+            uploads.unchoked = false;
+            uploads.clear();
+        }
+        PeerUploads nextUploads = next == null ? null : peers.get(next);
+        if(nextUploads != null) unchoke(nextUploads);
+        return wasUnchoked;
+    }
+
+    /** Works off a peer's queue until it is empty; runs on one virtual thread per peer at a time. */
+    private void serve(PeerUploads uploads) {
+        PeerConnection peer = uploads.peer;
+        // blocks leave together rather than one write each
+        peer.cork();
+        try {
+            Request request;
+            while((request = uploads.next()) != null) {
+                send(peer, request);
+                readahead(uploads, request);
+            }
+        } catch (Exception e) {
+            log.warn("Unable to upload to {} - disconnecting", peer.getPeer(), e);
+            uploads.stop();
+            peer.closeQuietly();
+        } finally {
+            peer.uncork();
+        }
+    }
+
+    private void send(PeerConnection peer, Request request) {
+        int index = request.pieceIndex();
+        ByteBuffer piece = cache.get(index);
+        if(piece == null) {
+            FileRegion[] regions = pieceManager.blockRegions(index, request.begin(), request.length());
+            if(regions != null) {
+                peer.sendPiece(index, request.begin(), regions);
+                blocksFromFile.increment();
+                sent(request);
+                return;
+            }
+            piece = load(index);
+            if(piece == null) {
+                throw new IllegalStateException("Verified piece " + index + " could not be read");
+            }
+        }
+        peer.sendPiece(index, request.begin(), piece.slice(request.begin(), request.length()));
+        sent(request);
+    }
+
+    private void sent(Request request) {
+        uploadedBytes.add(request.length());
+        blocksSent.increment();
+    }
+
+    /**
+     * Once a peer moves on to the next piece in order, reads the pieces after it into
+     * the cache before they are asked for.
+     */
+    private void readahead(PeerUploads uploads, Request request) {
+        int index = request.pieceIndex();
+        boolean sequential = index == uploads.lastPiece + 1 && request.begin() == 0
+                && uploads.lastEnd == pieceManager.getPieceLength(uploads.lastPiece);
+        uploads.lastPiece = index;
+        uploads.lastEnd = request.begin() + request.length();
+        if(!sequential || readaheadPieces <= 0) return;
+
+        for(int piece = index + 1; piece <= index + readaheadPieces && piece < pieceCount; piece++) {
+            if(!pieceManager.hasPiece(piece) || cache.contains(piece) || !loading.add(piece)) continue;
+            int ahead = piece;
+            readaheads.increment();
+            execute(() -> {
+                try {
+                    load(ahead);
+                } finally {
+                    loading.remove(ahead);
+                }
+            });
+        }
+    }
+
+    private ByteBuffer load(int pieceIndex) {
+        ByteBuffer piece = pieceManager.readPiece(pieceIndex);
+        if(piece != null) cache.put(pieceIndex, piece);
+        return piece;
+    }
+
+    private void execute(Runnable task) {
+        try {
+            readers.execute(task);
+        } catch (RejectedExecutionException e) {
+            log.debug("Upload manager closed, dropping upload work");
+        }
+    }
+
+    /** Encodes the pieces in wire order, piece 0 in the high bit of the first byte. */
+    private byte[] toWire(BitSet pieces) {
+        byte[] bits = new byte[(pieceCount + 7) / 8];
+        for(int i = pieces.nextSetBit(0); i >= 0 && i < pieceCount; i = pieces.nextSetBit(i + 1)) {
+            bits[i >>> 3] |= (byte) (0x80 >>> (i & 7));
+        }
+        return bits;
+    }
+
+    public long uploadedBytes() {
+        return uploadedBytes.sum();
+    }
+
+    /** Upload rate since the previous call, or the one before if that was under a second ago. */
+    public double bytesPerSecond() {
+        rateLock.lock();
+        try {
+            long now = System.nanoTime();
+            if(now - sampledAt >= RATE_SAMPLE_NANOS) {
+                long bytes = uploadedBytes.sum();
+                bytesPerSecond = (bytes - sampledBytes) * 1e9 / (now - sampledAt);
+                sampledAt = now;
+                sampledBytes = bytes;
+            }
+            return bytesPerSecond;
+        } finally {
+            rateLock.unlock();
+        }
+    }
+
+    public long blocksSent() {
+        return blocksSent.sum();
+    }
+
+    /** Blocks sent straight from the file because their piece wasn't cached. */
+    public long blocksFromFile() {
+        return blocksFromFile.sum();
+    }
+
+    public long refusedRequests() {
+        return refused.sum();
+    }
+
+    public long cancelledRequests() {
+        return cancelled.sum();
+    }
+
+    public long readaheadCount() {
+        return readaheads.sum();
+    }
+
+    public int unchokedCount() {
+        chokeLock.lock();
+        try {
+            return unchoked.size();
+        } finally {
+            chokeLock.unlock();
+        }
+    }
+
+    public PieceCache cache() {
+        return cache;
+    }
+
+    @Override
+    public void close() {
+        readers.shutdownNow();
+        peers.clear();
+    }
+
+    private record Request(int pieceIndex, int begin, int length) {}
+
+    /** One peer's queued requests and how it has been reading. */
+    private final class PeerUploads {
+        final PeerConnection peer;
+        volatile boolean advertised = false;
+        volatile boolean unchoked = false;
+
+        // guarded by lock
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Deque<Request> queue = new ArrayDeque<>();
+        private boolean serving = false;
+
+        // serving thread only
+        int lastPiece = -2;
+        int lastEnd = 0;
+
+        PeerUploads(PeerConnection peer) {
+            this.peer = peer;
+        }
+
+        /** Queues a request, starting a thread to serve the queue if none is. */
+        boolean add(Request request) {
+            boolean start;
+            lock.lock();
+            try {
+                if(queue.size() >= maxQueuedRequests) return false;
+                queue.add(request);
+                start = !serving;
+                serving = true;
+            } finally {
+                lock.unlock();
+            }
+            if(start) execute(() -> serve(this));
+            return true;
+        }
+
+        boolean remove(Request request) {
+            lock.lock();
+            try {
+                return queue.remove(request);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** @return the next request, or null once the queue is empty, which ends the serving thread */
+        Request next() {
+            lock.lock();
+            try {
+                Request request = queue.poll();
+                if(request == null) serving = false;
+                return request;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                queue.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void stop() {
+            lock.lock();
+            try {
+                queue.clear();
+                serving = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
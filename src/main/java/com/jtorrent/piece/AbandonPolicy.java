@@ -0,0 +1,10 @@
+package com.jtorrent.piece;
+
+/**
+ * What happens to a buffered piece nobody has sent a block of for a while.
+ * <ul>
+ *     <li>{@code SPILL} - the blocks received so far are written to storage and the rest of the piece goes there directly</li>
+ *     <li>{@code DROP} - the blocks are discarded and the piece is downloaded again from scratch</li>
+ * </ul>
+ */
+public enum AbandonPolicy { SPILL, DROP }
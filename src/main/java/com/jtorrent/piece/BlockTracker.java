@@ -1,63 +1,183 @@
 package com.jtorrent.piece;
 
-import java.util.BitSet;
-import java.util.HashMap;
-import java.util.Map;
-
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks which blocks have been requested and received. Every block has a global
+ * number, {@code piece * blocksPerPiece + block}, and a bit at that position in two
+ * flat word arrays, plus a received counter per piece, so the whole state is
+ * allocated up front and costs two bits per block however large the torrent is.
+ * Claiming a block is a CAS on the word holding it and a scan looks at 64 blocks
+ * per step; receiving one is an atomic OR, and storing it bumps the piece's counter.
+ * No method takes a lock.
+ */
 public class BlockTracker {
     public static final int BLOCK_SIZE = 16 * 1024;
 
     private final int pieceCount;
     private final int pieceLength;
     private final long totalSize;
+    private final int blocksPerPiece;
 
-    private final Map<Integer, BitSet> requestedBlocks = new HashMap<>();
-    private final Map<Integer, BitSet> receivedBlocks = new HashMap<>();
+    private final AtomicLongArray requested;
+    private final AtomicLongArray received;
+    private final AtomicIntegerArray receivedCounts;
 
     public BlockTracker(int pieceCount, int pieceLength, long totalSize) {
         this.pieceCount = pieceCount;
         this.pieceLength = pieceLength;
         this.totalSize = totalSize;
-    }
+        this.blocksPerPiece = (pieceLength + BLOCK_SIZE - 1) / BLOCK_SIZE;
 
-    public synchronized Block nextBlockToRequest(int pieceIndex) {
-        int blocks = blocksInPiece(pieceIndex);
-
-        BitSet requested = requestedBlocks.computeIfAbsent(pieceIndex, p -> new BitSet(blocks));
-        BitSet received = receivedBlocks.computeIfAbsent(pieceIndex, p -> new BitSet(blocks));
+        long totalBlocks = (long) pieceCount * blocksPerPiece;
+        int words = Math.toIntExact((totalBlocks + 63) >>> 6);
+        this.requested = new AtomicLongArray(words);
+        this.received = new AtomicLongArray(words);
+        this.receivedCounts = new AtomicIntegerArray(pieceCount);
+    }
 
-        for (int blockIndex = 0; blockIndex < blocks; blockIndex++) {
-            if (!requested.get(blockIndex) && !received.get(blockIndex)) {
+    /**
+     * Claims the first block of the piece that is neither requested nor received.
+     *
+     * @return the claimed block, or null if every block is taken
+     */
+    public Block nextBlockToRequest(int pieceIndex) {
+        long first = firstBlock(pieceIndex);
+        long end = first + blocksInPiece(pieceIndex);
+
+        long bit = first;
+        while(bit < end) {
+            int word = (int) (bit >>> 6);
+            long current = requested.get(word);
+            long free = ~(current | received.get(word)) & rangeMask(bit, end);
+            if(free == 0) {
+                bit = (long) (word + 1) << 6;
+                continue;
+            }
+            long claim = Long.lowestOneBit(free);
+            if(requested.compareAndSet(word, current, current | claim)) {
+                int blockIndex = (int) (((long) word << 6) + Long.numberOfTrailingZeros(claim) - first);
                 int offset = blockIndex * BLOCK_SIZE;
-                int length = blockLength(pieceIndex, offset);
-
-                requested.set(blockIndex);
-                return new Block(pieceIndex, offset, length, blockIndex);
+                return new Block(pieceIndex, offset, blockLength(pieceIndex, offset), blockIndex);
             }
+            // lost the word to another claim or release; look at it again
         }
         return null;
     }
 
-    public synchronized void markReceived (int pieceIndex, int blockIndex){
-        receivedBlocks.computeIfAbsent(pieceIndex, p -> new BitSet()).set(blockIndex);
+    /**
+     * Claims the right to store a received block. Only the first copy of a block wins,
+     * so a duplicate from a second peer is never written over data that may already be
+     * being hashed.
+     *
+     * @return true if the caller should store the block, false if it is a duplicate
+     */
+    public boolean tryReceive(int pieceIndex, int blockIndex) {
+        long bit = blockBit(pieceIndex, blockIndex);
+        long mask = 1L << bit;
+        long previous = received.getAndAccumulate((int) (bit >>> 6), mask, (a, b) -> a | b);
+        return (previous & mask) == 0;
+    }
+
+    /**
+     * Counts a block claimed with {@link #tryReceive} as stored.
+     *
+     * @return true if it was the last block the piece was missing
+     */
+    public boolean blockStored(int pieceIndex) {
+        return receivedCounts.incrementAndGet(pieceIndex) == blocksInPiece(pieceIndex);
+    }
+
+    /** Whether {@code begin} and {@code length} describe exactly one block of the piece. */
+    public boolean isValidBlock(int pieceIndex, int begin, int length) {
+        if(pieceIndex < 0 || pieceIndex >= pieceCount || begin < 0 || begin % BLOCK_SIZE != 0) return false;
+        return begin < pieceSize(pieceIndex) && length == blockLength(pieceIndex, begin);
+    }
+
+    public boolean isPieceComplete(int pieceIndex) {
+        return receivedCounts.get(pieceIndex) == blocksInPiece(pieceIndex);
+    }
+
+    /** Blocks of the piece stored so far. */
+    public int receivedCount(int pieceIndex) {
+        return receivedCounts.get(pieceIndex);
+    }
+
+    /** Forgets every request and every received block of the piece, e.g. after its hash failed. */
+    public void resetPiece(int pieceIndex) {
+        long first = firstBlock(pieceIndex);
+        long end = first + blocksInPiece(pieceIndex);
+        clearRange(received, first, end);
+        clearRange(requested, first, end);
+        receivedCounts.set(pieceIndex, 0);
     }
 
-    public synchronized boolean isPieceComplete (int pieceIndex){
-        int blocks = blocksInPiece(pieceIndex);
-        BitSet received = receivedBlocks.get(pieceIndex);
+    /**
+     * Marks every block of the piece as received, for a piece that is already complete
+     * on disk, so no block of it is ever requested or stored again.
+     */
+    public void markPieceReceived(int pieceIndex) {
+        long first = firstBlock(pieceIndex);
+        long end = first + blocksInPiece(pieceIndex);
+        for(long bit = first; bit < end; bit = ((bit >>> 6) + 1) << 6) {
+            received.getAndAccumulate((int) (bit >>> 6), rangeMask(bit, end), (a, b) -> a | b);
+        }
+        receivedCounts.set(pieceIndex, blocksInPiece(pieceIndex));
+    }
+
+    /** Undoes {@link #tryReceive} for a block that could not be stored, so it is requested again. */
+    public void forgetBlock(int pieceIndex, int blockIndex) {
+        long bit = blockBit(pieceIndex, blockIndex);
+        received.getAndAccumulate((int) (bit >>> 6), ~(1L << bit), (a, b) -> a & b);
+        releaseBlock(pieceIndex, blockIndex);
+    }
+
+    public void releaseBlock(int pieceIndex, int blockIndex) {
+        long bit = blockBit(pieceIndex, blockIndex);
+        requested.getAndAccumulate((int) (bit >>> 6), ~(1L << bit), (a, b) -> a & b);
+    }
+
+    public boolean isBlockReceived(int pieceIndex, int blockIndex) {
+        return isSet(received, blockBit(pieceIndex, blockIndex));
+    }
 
-        return received != null && received.cardinality() == blocks;
+    public boolean isBlockRequested(int pieceIndex, int blockIndex) {
+        return isSet(requested, blockBit(pieceIndex, blockIndex));
     }
 
-    public synchronized void resetPiece (int pieceIndex){
-        requestedBlocks.remove(pieceIndex);
-        receivedBlocks.remove(pieceIndex);
+    public int blockCount(int pieceIndex) {
+        return blocksInPiece(pieceIndex);
     }
 
-    public synchronized boolean isBlockRequested (int pieceIndex, int blockIndex) {
-        BitSet requested = requestedBlocks.get(pieceIndex);
+    private static boolean isSet(AtomicLongArray words, long bit) {
+        return (words.get((int) (bit >>> 6)) & (1L << bit)) != 0;
+    }
+
+    private static void clearRange(AtomicLongArray words, long from, long to) {
+        for(long bit = from; bit < to; bit = ((bit >>> 6) + 1) << 6) {
+            long keep = ~rangeMask(bit, to);
+            words.getAndAccumulate((int) (bit >>> 6), keep, (a, b) -> a & b);
+        }
+    }
+
+    /** Bits from {@code bit} up to {@code end} or the end of its word, whichever comes first. */
+    private static long rangeMask(long bit, long end) {
+        long wordStart = bit & ~63L;
+        int hi = (int) Math.min(end - wordStart, 64);
+        long upTo = hi == 64 ? -1L : (1L << hi) - 1;
+        return upTo & (-1L << bit);
+    }
+
+    private long blockBit(int pieceIndex, int blockIndex) {
+        Objects.checkIndex(blockIndex, blocksInPiece(pieceIndex));
+        return firstBlock(pieceIndex) + blockIndex;
+    }
 
-        return requested != null && requested.get(blockIndex);
+    private long firstBlock(int pieceIndex) {
+        Objects.checkIndex(pieceIndex, pieceCount);
+        return (long) pieceIndex * blocksPerPiece;
     }
 
     private int blocksInPiece (int pieceIndex){
@@ -77,4 +197,4 @@ public class BlockTracker {
         }
         return pieceLength;
     }
-}
\ No newline at end of file
+}
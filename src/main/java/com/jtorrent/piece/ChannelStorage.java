@@ -0,0 +1,64 @@
+package com.jtorrent.piece;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Storage through positional {@link FileChannel} reads and writes. Nothing is mapped,
+ * so it behaves the same under memory pressure and on network filesystems where mmap
+ * doesn't; the price is a copy into the page cache for every block and a read for
+ * every hash.
+ */
+class ChannelStorage extends FileStorage {
+
+    ChannelStorage(FileLayout layout) throws IOException {
+        super(layout);
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer src) {
+        int source = src.position();
+        layout.forEachSegment(offset, src.remaining(), (file, fileOffset, done, length) -> {
+            FileChannel channel = channel(file, true);
+            ByteBuffer slice = src.slice(source + done, length);
+            try {
+                // positional writes leave the channel's position alone, so no lock is needed
+                while(slice.hasRemaining()) {
+                    channel.write(slice, fileOffset + slice.position());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to write " + file.path(), e);
+            }
+        });
+    }
+
+    @Override
+    public boolean read(long offset, ByteBuffer dst) {
+        int target = dst.position();
+        boolean[] present = {true};
+        layout.forEachSegment(offset, dst.remaining(), (file, fileOffset, done, length) -> {
+            if(!present[0]) return;
+            FileChannel channel = channel(file, false);
+            if(channel == null) {
+                present[0] = false;
+                return;
+            }
+            ByteBuffer slice = dst.slice(target + done, length);
+            try {
+                while(slice.hasRemaining()) {
+                    if(channel.read(slice, fileOffset + slice.position()) < 0) {
+                        // the file ends before the range does
+                        present[0] = false;
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read " + file.path(), e);
+            }
+        });
+        if(present[0]) dst.position(dst.limit());
+        return present[0];
+    }
+}
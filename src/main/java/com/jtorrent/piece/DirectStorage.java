@@ -0,0 +1,181 @@
+package com.jtorrent.piece;
+
+import com.jtorrent.piece.FileLayout.FileSpan;
+import com.jtorrent.util.BufferPool;
+import com.jtorrent.util.PooledBuffer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Storage that bypasses the page cache with {@code ExtendedOpenOption.DIRECT}, for
+ * hosts where a large download would otherwise push everything else out of memory.
+ * Direct I/O only moves whole, aligned file system blocks from aligned buffers, so
+ * every write goes through a block-aligned copy, and a block only partly covered by
+ * the data is read in first. Those read-modify-writes take the file's lock, since two
+ * pieces can share a block where one ends and the next begins.
+ * <p>
+ * Files grow to the end of their last block while written and are cut back to their
+ * real length on close. Aligned buffers come from a small pool shared by every thread,
+ * so blocks don't each allocate native memory and idle buffers stay under a fixed cap.
+ */
+class DirectStorage extends FileStorage {
+
+    private static final int MAX_POOLED_BUFFER = 4 * 1024 * 1024;
+    private static final long MAX_POOLED_BYTES = 16 * 1024 * 1024;
+
+    /** The JDK's O_DIRECT option, or null if this JDK has none. */
+    static final OpenOption DIRECT = directOption();
+
+    private final int alignment;
+    private final BufferPool buffers;
+
+    DirectStorage(FileLayout layout) throws IOException {
+        super(layout);
+        if(DIRECT == null) throw new IOException("Direct I/O is not supported by this JDK");
+        Path directory = layout.root().toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        this.alignment = Math.toIntExact(Files.getFileStore(directory).getBlockSize());
+        this.buffers = new BufferPool(MAX_POOLED_BUFFER, MAX_POOLED_BYTES, true, alignment);
+    }
+
+    @Override
+    protected OpenOption[] openOptions() {
+        return new OpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, DIRECT};
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer src) {
+        int source = src.position();
+        layout.forEachSegment(offset, src.remaining(), (file, fileOffset, done, length) ->
+                writeAligned(file, fileOffset, src.slice(source + done, length)));
+    }
+
+    /** Unaligned buffers can't be handed to the channel, so a piece is written block-aligned like any other data. */
+    @Override
+    public void writeGathering(long offset, ByteBuffer... buffers) {
+        for(ByteBuffer buffer : buffers) {
+            write(offset, buffer);
+            offset += buffer.remaining();
+        }
+    }
+
+    private void writeAligned(FileSpan file, long fileOffset, ByteBuffer data) {
+        int length = data.remaining();
+        long start = alignDown(fileOffset);
+        long end = alignUp(fileOffset + length);
+        long lastBlock = end - alignment;
+        boolean partialHead = start < fileOffset;
+        boolean partialTail = fileOffset + length < end;
+        PooledBuffer pooled = buffers.acquire((int) (end - start));
+        ByteBuffer aligned = pooled.buffer();
+
+        FileChannel channel = channel(file, true);
+        ReentrantLock lock = fileLocks[file.index()];
+        lock.lock();
+        try {
+            if(partialHead) readBlock(channel, aligned, 0, start);
+            if(partialTail && (lastBlock != start || !partialHead)) readBlock(channel, aligned, (int) (lastBlock - start), lastBlock);
+            aligned.put((int) (fileOffset - start), data, data.position(), length);
+
+            aligned.rewind();
+            while(aligned.hasRemaining()) {
+                channel.write(aligned, start + aligned.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write " + file.path(), e);
+        } finally {
+            lock.unlock();
+            pooled.release();
+        }
+    }
+
+    /**
+     * Reads one block into {@code buffer} at {@code at}; past the end of the file it is zeroed.
+     * Direct reads move whole blocks, so a short one means the file ends inside this block,
+     * and reading on from the unaligned position it stopped at would fail.
+     */
+    private void readBlock(FileChannel channel, ByteBuffer buffer, int at, long position) throws IOException {
+        ByteBuffer block = buffer.slice(at, alignment);
+        channel.read(block, position);
+        // the buffer is pooled, so the tail may still hold an earlier span
+        while(block.hasRemaining()) block.put((byte) 0);
+    }
+
+    @Override
+    public boolean read(long offset, ByteBuffer dst) {
+        int target = dst.position();
+        boolean[] present = {true};
+        layout.forEachSegment(offset, dst.remaining(), (file, fileOffset, done, length) -> {
+            if(!present[0]) return;
+            FileChannel channel = channel(file, false);
+            if(channel == null) {
+                present[0] = false;
+                return;
+            }
+
+            long start = alignDown(fileOffset);
+            int needed = (int) (fileOffset + length - start);
+            PooledBuffer pooled = buffers.acquire((int) (alignUp(fileOffset + length) - start));
+            ByteBuffer aligned = pooled.buffer();
+            try {
+                while(aligned.position() < needed) {
+                    // a read that stops inside a block has reached the end of the file
+                    if(channel.read(aligned, start + aligned.position()) <= 0
+                            || aligned.position() < needed && aligned.position() % alignment != 0) {
+                        present[0] = false;
+                        return;
+                    }
+                }
+                dst.put(target + done, aligned, (int) (fileOffset - start), length);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read " + file.path(), e);
+            } finally {
+                pooled.release();
+            }
+        });
+        if(present[0]) dst.position(dst.limit());
+        return present[0];
+    }
+
+    /** A transfer from a file opened for direct I/O would have to be aligned too, so blocks are read instead. */
+    @Override
+    public FileRegion[] regions(long offset, int length) {
+        return null;
+    }
+
+    @Override
+    protected void beforeClose(FileSpan file, FileChannel channel) throws IOException {
+        if(channel.size() > file.length()) channel.truncate(file.length());
+    }
+
+    /**
+     * Looked up by name, since the option lives in the JDK-internal com.sun.nio.file
+     * package, and naming it draws a javac warning that can't be suppressed.
+     */
+    private static OpenOption directOption() {
+        try {
+            for(Object option : Class.forName("com.sun.nio.file.ExtendedOpenOption").getEnumConstants()) {
+                if(((Enum<?>) option).name().equals("DIRECT")) return (OpenOption) option;
+            }
+        } catch (ClassNotFoundException e) {
+            // not a JDK that has it
+        }
+        return null;
+    }
+
+    private long alignDown(long position) {
+        return position - position % alignment;
+    }
+
+    private long alignUp(long position) {
+        return alignDown(position + alignment - 1);
+    }
+}
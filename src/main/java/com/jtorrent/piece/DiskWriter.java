@@ -0,0 +1,303 @@
+package com.jtorrent.piece;
+
+import com.jtorrent.util.PooledBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Writes verified pieces to storage on a thread of its own, so neither the network nor
+ * the hashing threads wait on the disk. Whatever is queued when the writer comes round
+ * is sorted by offset, and each run of adjacent pieces goes out as one gathering write.
+ * <p>
+ * Pieces are bounded. Once the queue holds most of its pieces {@link #isBacklogged()}
+ * reports it so the scheduler stops starting pieces; if it fills up anyway, submitters
+ * wait for room.
+ * <p>
+ * Blocks of pieces stored in place are queued the same way by threads that must not
+ * wait at all, so they are never refused. {@link #isBlockBacklogged()} tells those
+ * threads to stop reading from the network while too many bytes of blocks are queued.
+ * <p>
+ * The writer also syncs storage as its {@link SyncPolicy} says, counting the bytes of
+ * pieces that were stored some other way through {@link #stored(long)}.
+ */
+public class DiskWriter implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(DiskWriter.class);
+
+    // how long the writer waits for work before checking whether a sync is due
+    private static final long POLL_MILLIS = 100;
+
+    private final Storage storage;
+    private final SyncPolicy policy;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    // one permit per piece the queue may hold
+    private final Semaphore pieceSlots;
+    private final int queueCapacity;
+    private final int backlogThreshold;
+    private final long blockBacklogBytes;
+    private final AtomicLong queuedBlockBytes = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean syncRequested = false;
+
+    private final AtomicLong unsyncedBytes = new AtomicLong();
+    private long lastSync = System.nanoTime();   // writer thread only
+
+    private final LongAdder piecesWritten = new LongAdder();
+    private final LongAdder blocksWritten = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder fullWaits = new LongAdder();
+
+    /**
+     * @param queueCapacity     pieces the queue holds before piece submitters wait
+     * @param blockBacklogBytes queued block bytes past which {@link #isBlockBacklogged()} reports a backlog
+     */
+    public DiskWriter(Storage storage, int queueCapacity, long blockBacklogBytes, SyncPolicy policy) {
+        this.storage = storage;
+        this.policy = policy;
+        this.queueCapacity = queueCapacity;
+        this.pieceSlots = new Semaphore(queueCapacity);
+        this.backlogThreshold = Math.max(1, queueCapacity * 3 / 4);
+        this.blockBacklogBytes = blockBacklogBytes;
+        this.thread = Thread.ofPlatform().name("disk-writer").daemon().start(this::run);
+    }
+
+    /**
+     * Queues a piece to be written at {@code offset}, waiting while the queue is full.
+     * The caller's reference to {@code piece} passes to the writer, which releases it
+     * once the piece is written.
+     *
+     * @param onWritten called on the writer thread with whether the write succeeded
+     */
+    public void submit(long offset, PooledBuffer piece, Consumer<Boolean> onWritten) {
+        PendingWrite write = new PendingWrite(offset, piece, false, onWritten);
+        if(!pieceSlots.tryAcquire()) {
+            fullWaits.increment();
+            try {
+                pieceSlots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                write.piece().release();
+                failed.increment();
+                write.onWritten().accept(false);
+                return;
+            }
+        }
+        queue.add(write);
+    }
+
+    /**
+     * Queues a block of a piece stored in place, without ever waiting. Like a piece,
+     * the caller's reference to {@code block} passes to the writer. Its bytes only
+     * count towards the next sync once the whole piece is reported through
+     * {@link #stored(long)}.
+     *
+     * @param onWritten called on the writer thread with whether the write succeeded
+     */
+    public void submitBlock(long offset, PooledBuffer block, Consumer<Boolean> onWritten) {
+        queuedBlockBytes.addAndGet(block.buffer().limit());
+        queue.add(new PendingWrite(offset, block, true, onWritten));
+    }
+
+    /** Counts bytes stored without going through the queue towards the next sync. */
+    public void stored(long bytes) {
+        unsyncedBytes.addAndGet(bytes);
+    }
+
+    /** Has the writer sync as soon as it is done with what is queued, whatever the policy. */
+    public void requestSync() {
+        syncRequested = true;
+    }
+
+    /** Whether the queue is full enough that no more pieces should be started for now. */
+    public boolean isBacklogged() {
+        return queueDepth() >= backlogThreshold;
+    }
+
+    /** Whether so many bytes of blocks are queued that no more should be read for now. */
+    public boolean isBlockBacklogged() {
+        return queuedBlockBytes.get() >= blockBacklogBytes;
+    }
+
+    /** Pieces queued or being written. */
+    public int queueDepth() {
+        return queueCapacity - pieceSlots.availablePermits();
+    }
+
+    /** Bytes of blocks queued or being written. */
+    public long queuedBlockBytes() {
+        return queuedBlockBytes.get();
+    }
+
+    public long piecesWritten() {
+        return piecesWritten.sum();
+    }
+
+    public long blocksWritten() {
+        return blocksWritten.sum();
+    }
+
+    /** Gathering writes issued; fewer than the pieces and blocks written when adjacent ones were merged. */
+    public long writeCount() {
+        return writes.sum();
+    }
+
+    public long failedCount() {
+        return failed.sum();
+    }
+
+    public long syncCount() {
+        return syncs.sum();
+    }
+
+    /** Times a submitter found the queue full and had to wait. */
+    public long fullWaits() {
+        return fullWaits.sum();
+    }
+
+    private void run() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while(running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if(first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    writeBatch(batch);
+                    batch.clear();
+                }
+                if(syncDue()) sync();
+            } catch (InterruptedException e) {
+                // nobody interrupts the writer: an interrupt would close the channels mid-write
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Disk writer failed", e);
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingWrite> batch) {
+        batch.sort(Comparator.comparingLong(PendingWrite::offset));
+        int start = 0;
+        while(start < batch.size()) {
+            int end = start + 1;
+            long runEnd = batch.get(start).end();
+            while(end < batch.size() && batch.get(end).offset() == runEnd) {
+                runEnd = batch.get(end++).end();
+            }
+            writeRun(batch.subList(start, end));
+            start = end;
+        }
+    }
+
+    private void writeRun(List<PendingWrite> run) {
+        ByteBuffer[] buffers = new ByteBuffer[run.size()];
+        for(int i = 0; i < buffers.length; i++) {
+            buffers[i] = run.get(i).piece().buffer().duplicate();
+        }
+
+        long offset = run.getFirst().offset();
+        boolean written = false;
+        try {
+            storage.writeGathering(offset, buffers);
+            writes.increment();
+            long pieceBytes = 0;
+            for(PendingWrite write : run) {
+                if(!write.block()) pieceBytes += write.piece().buffer().limit();
+            }
+            unsyncedBytes.addAndGet(pieceBytes);
+            written = true;
+            log.debug("Wrote {} pieces and blocks at offset {} ({} bytes)", run.size(), offset, run.getLast().end() - offset);
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Unable to write {} pieces and blocks at offset {}", run.size(), offset, e);
+        }
+
+        for(PendingWrite write : run) {
+            complete(write, written);
+        }
+    }
+
+    private void complete(PendingWrite write, boolean written) {
+        int length = write.piece().buffer().limit();
+        write.piece().release();
+        if(write.block()) {
+            queuedBlockBytes.addAndGet(-length);
+            if(written) blocksWritten.increment();
+        } else {
+            pieceSlots.release();
+            if(written) piecesWritten.increment();
+        }
+        if(!written) failed.increment();
+        try {
+            write.onWritten().accept(written);
+        } catch (Exception e) {
+            log.error("Error after writing at offset {}", write.offset(), e);
+        }
+    }
+
+    private boolean syncDue() {
+        if(syncRequested) return true;
+        long unsynced = unsyncedBytes.get();
+        if(unsynced == 0) return false;
+        return switch (policy.mode()) {
+            case PERIODIC -> System.nanoTime() - lastSync >= TimeUnit.MILLISECONDS.toNanos(policy.intervalMillis());
+            case BYTES -> unsynced >= policy.everyBytes();
+            case COMPLETION -> false;
+        };
+    }
+
+    private void sync() {
+        syncRequested = false;
+        long unsynced = unsyncedBytes.getAndSet(0);
+        try {
+            storage.sync();
+            syncs.increment();
+            log.debug("Synced {} bytes to disk", unsynced);
+        } catch (IOException | UncheckedIOException e) {
+            // the bytes stay counted, so the next sync tries again
+            unsyncedBytes.addAndGet(unsynced);
+            log.error("Unable to sync storage", e);
+        }
+        lastSync = System.nanoTime();
+    }
+
+    /** Writes out everything still queued, then syncs. */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(thread.isAlive()) {
+            log.warn("Disk writer still running at shutdown with {} writes queued", queue.size());
+            return;
+        }
+        sync();
+    }
+
+    // a piece, or a single block when block is set
+    private record PendingWrite(long offset, PooledBuffer piece, boolean block, Consumer<Boolean> onWritten) {
+        long end() {
+            return offset + piece.buffer().limit();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.jtorrent.piece;
+
+import com.jtorrent.metaInfo.TorrentFile;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Where a torrent's bytes live on disk. Pieces are numbered over the files laid end
+ * to end in torrent order, so a piece can start in one file and finish in the next;
+ * this maps ranges of that concatenated space back to the files they cover.
+ */
+public final class FileLayout {
+
+    /** A file on disk and the range of the torrent it holds. */
+    public record FileSpan(int index, Path path, long offset, long length) {
+        public long end() {
+            return offset + length;
+        }
+    }
+
+    @FunctionalInterface
+    interface SegmentAction {
+        /**
+         * @param done   bytes of the range covered by earlier segments
+         * @param length bytes of the range that fall into this file
+         */
+        void apply(FileSpan file, long fileOffset, int done, int length);
+    }
+
+    private final List<FileSpan> files;
+    private final long[] offsets;
+    private final long totalSize;
+    private final Path root;
+
+    private FileLayout(List<FileSpan> files, Path root) {
+        this.files = List.copyOf(files);
+        this.offsets = files.stream().mapToLong(FileSpan::offset).toArray();
+        this.totalSize = files.isEmpty() ? 0 : files.getLast().end();
+        this.root = root;
+    }
+
+    /** The whole torrent in one file, as for a single-file torrent. */
+    public static FileLayout singleFile(Path file, long length) {
+        return new FileLayout(List.of(new FileSpan(0, file, 0, length)), file);
+    }
+
+    /**
+     * Lays the torrent's files out under {@code downloadDirectory}.
+     *
+     * @throws IllegalArgumentException if a file path would end up outside the directory
+     */
+    public static FileLayout of(Path downloadDirectory, List<TorrentFile> torrentFiles) {
+        Path base = downloadDirectory.toAbsolutePath().normalize();
+        List<FileSpan> spans = new ArrayList<>(torrentFiles.size());
+        long offset = 0;
+        for(TorrentFile file : torrentFiles) {
+            Path path = base;
+            for(String component : file.path()) {
+                path = path.resolve(component);
+            }
+            path = path.normalize();
+            if(!path.startsWith(base) || path.equals(base)) {
+                throw new IllegalArgumentException("File path " + file.path() + " escapes " + base);
+            }
+            spans.add(new FileSpan(spans.size(), path, offset, file.length()));
+            offset += file.length();
+        }
+        if(spans.isEmpty()) {
+            throw new IllegalArgumentException("Torrent has no files");
+        }
+        // the torrent's name: the file itself, or the directory holding all of them
+        Path root = base.resolve(torrentFiles.getFirst().path().getFirst()).normalize();
+        return new FileLayout(spans, root);
+    }
+
+    public List<FileSpan> files() {
+        return files;
+    }
+
+    public int fileCount() {
+        return files.size();
+    }
+
+    public long totalSize() {
+        return totalSize;
+    }
+
+    /** The single file, or the directory a multi-file torrent is saved in. */
+    public Path root() {
+        return root;
+    }
+
+    /** Index of the file holding the byte at {@code offset}; empty files are never returned. */
+    int fileAt(long offset) {
+        int i = Arrays.binarySearch(offsets, offset);
+        if(i < 0) {
+            i = -i - 2;
+        }
+        // several files start at the same offset when some are empty; take the last of them
+        while(i + 1 < offsets.length && offsets[i + 1] <= offset) i++;
+        return i;
+    }
+
+    /** First and last file the range {@code [offset, offset + length)} touches. */
+    int[] filesOf(long offset, long length) {
+        int first = fileAt(offset);
+        int last = length == 0 ? first : fileAt(offset + length - 1);
+        return new int[]{first, last};
+    }
+
+    /**
+     * Splits the range {@code [offset, offset + length)} into the pieces that fall into
+     * each file, in order.
+     */
+    void forEachSegment(long offset, int length, SegmentAction action) {
+        if(offset < 0 || length < 0 || offset + length > totalSize) {
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " outside torrent of " + totalSize + " bytes");
+        }
+
+        int done = 0;
+        int fileIndex = length == 0 ? 0 : fileAt(offset);
+        while(done < length) {
+            FileSpan file = files.get(fileIndex++);
+            long position = offset + done;
+            if(position >= file.end()) continue;
+            int chunk = (int) Math.min(length - done, file.end() - position);
+            action.apply(file, position - file.offset(), done, chunk);
+            done += chunk;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.jtorrent.piece;
+
+/**
+ * How much a file is wanted. A piece takes the highest priority of the files it
+ * overlaps, so a piece is only skipped if every file it touches is.
+ */
+public enum FilePriority {
+    SKIP,
+    LOW,
+    NORMAL,
+    HIGH
+}
@@ -0,0 +1,70 @@
+package com.jtorrent.piece;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A stretch of an open file waiting to be sent, so a block can go from the page cache
+ * to a socket with {@link FileChannel#transferTo} instead of through the heap. Like a
+ * buffer it has a position that moves as it is sent; it must be sent by one thread.
+ */
+public final class FileRegion {
+
+    private final FileChannel channel;
+    private long position;
+    private long remaining;
+
+    public FileRegion(FileChannel channel, long position, long length) {
+        this.channel = channel;
+        this.position = position;
+        this.remaining = length;
+    }
+
+    public long remaining() {
+        return remaining;
+    }
+
+    public boolean hasRemaining() {
+        return remaining > 0;
+    }
+
+    /**
+     * Sends as much of the region as the target takes.
+     *
+     * @return the bytes sent, 0 if a non-blocking target is full
+     * @throws EOFException if the file ends before the region does
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long sent = channel.transferTo(position, remaining, target);
+        if(sent == 0 && position >= channel.size()) {
+            throw new EOFException("File ends before the region at " + position);
+        }
+        position += sent;
+        remaining -= sent;
+        return sent;
+    }
+
+    /**
+     * Copies the next bytes of the region into {@code dst}, for targets that can't take
+     * a transfer.
+     *
+     * @return the bytes copied
+     * @throws EOFException if the file ends before the region does
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        ByteBuffer window = dst.limit() - dst.position() > remaining
+                ? dst.slice(dst.position(), (int) remaining)
+                : dst.slice();
+        int read = channel.read(window, position);
+        if(read < 0) {
+            throw new EOFException("File ends before the region at " + position);
+        }
+        dst.position(dst.position() + read);
+        position += read;
+        remaining -= read;
+        return read;
+    }
+}
@@ -0,0 +1,214 @@
+package com.jtorrent.piece;
+
+import com.jtorrent.piece.FileLayout.FileSpan;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The files of a {@link FileLayout} on disk, addressed as one range of bytes. Files
+ * are created the first time something is written to them, so a skipped file only
+ * ever exists if a piece shared with a wanted file spills into it. Reads never create
+ * files: a range that touches a missing file simply isn't there yet.
+ * <p>
+ * Subclasses decide how bytes move between memory and the open channels.
+ */
+abstract class FileStorage implements Storage {
+
+    private static final Logger log = LoggerFactory.getLogger(FileStorage.class);
+
+    // digests read the files through a buffer of at most this size
+    private static final int DIGEST_CHUNK = 1024 * 1024;
+
+    protected final FileLayout layout;
+    private final AtomicReferenceArray<FileChannel> channels;
+    protected final ReentrantLock[] fileLocks;
+
+    FileStorage(FileLayout layout) throws IOException {
+        this.layout = layout;
+        this.channels = new AtomicReferenceArray<>(layout.fileCount());
+        this.fileLocks = new ReentrantLock[layout.fileCount()];
+        for(int i = 0; i < fileLocks.length; i++) {
+            fileLocks[i] = new ReentrantLock();
+        }
+
+        // no piece ever writes to an empty file, so it is created here or not at all
+        for(FileSpan file : layout.files()) {
+            if(file.length() == 0 && !Files.exists(file.path())) {
+                Files.createDirectories(file.path().toAbsolutePath().getParent());
+                Files.createFile(file.path());
+            }
+        }
+    }
+
+    /**
+     * Writes consecutive buffers starting at {@code offset} with one gathering write per
+     * file they cover, so a piece spanning files is never copied. The buffers'
+     * positions are not moved.
+     */
+    @Override
+    public void writeGathering(long offset, ByteBuffer... buffers) throws IOException {
+        long length = 0;
+        for(ByteBuffer buffer : buffers) length += buffer.remaining();
+
+        int[] range = layout.filesOf(offset, length);
+        long position = offset;
+        int next = 0;
+        int consumed = 0;   // bytes of buffers[next] already assigned to an earlier file
+        for(int f = range[0]; f <= range[1]; f++) {
+            FileSpan file = layout.files().get(f);
+            long fileEnd = Math.min(file.end(), offset + length);
+            if(position >= fileEnd) continue;
+
+            // slice out the part of the buffers that falls into this file
+            List<ByteBuffer> slices = new ArrayList<>();
+            long remaining = fileEnd - position;
+            while(remaining > 0) {
+                ByteBuffer buffer = buffers[next];
+                int take = (int) Math.min(buffer.remaining() - consumed, remaining);
+                slices.add(buffer.slice(buffer.position() + consumed, take));
+                remaining -= take;
+                consumed += take;
+                if(consumed == buffer.remaining()) {
+                    next++;
+                    consumed = 0;
+                }
+            }
+
+            gather(file, position - file.offset(), slices.toArray(ByteBuffer[]::new));
+            position = fileEnd;
+        }
+    }
+
+    private void gather(FileSpan file, long fileOffset, ByteBuffer[] slices) throws IOException {
+        FileChannel channel = channel(file, true);
+        // a gathering write goes to the channel's position, so writers of one file take turns
+        ReentrantLock lock = fileLocks[file.index()];
+        lock.lock();
+        try {
+            channel.position(fileOffset);
+            long left = 0;
+            for(ByteBuffer slice : slices) left += slice.remaining();
+            while(left > 0) {
+                left -= channel.write(slices);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public FileRegion[] regions(long offset, int length) {
+        List<FileRegion> regions = new ArrayList<>();
+        boolean[] present = {true};
+        layout.forEachSegment(offset, length, (file, fileOffset, done, part) -> {
+            FileChannel channel = present[0] ? channel(file, false) : null;
+            if(channel == null) {
+                present[0] = false;
+                return;
+            }
+            regions.add(new FileRegion(channel, fileOffset, part));
+        });
+        return present[0] ? regions.toArray(FileRegion[]::new) : null;
+    }
+
+    /** Reads the range through a bounded buffer and feeds it to the digest. */
+    @Override
+    public boolean digest(long offset, int length, MessageDigest sha1) {
+        ByteBuffer chunk = ByteBuffer.allocate(Math.min(length, DIGEST_CHUNK));
+        int done = 0;
+        while(done < length) {
+            chunk.clear().limit(Math.min(chunk.capacity(), length - done));
+            if(!read(offset + done, chunk)) return false;
+            sha1.update(chunk.flip());
+            done += chunk.limit();
+        }
+        return true;
+    }
+
+    /** Forces the data of every open file; a file nobody opened has nothing to sync. */
+    @Override
+    public void sync() throws IOException {
+        for(int i = 0; i < channels.length(); i++) {
+            FileChannel channel = channels.get(i);
+            if(channel != null) channel.force(false);
+        }
+    }
+
+    /** Total size and latest modification time of the files that already exist. */
+    @Override
+    public ExistingData existingData() throws IOException {
+        long size = 0;
+        long lastModified = 0;
+        for(FileSpan file : layout.files()) {
+            if(!Files.exists(file.path())) continue;
+            size += Files.size(file.path());
+            lastModified = Math.max(lastModified, Files.getLastModifiedTime(file.path()).toMillis());
+        }
+        return new ExistingData(size, lastModified);
+    }
+
+    protected OpenOption[] openOptions() {
+        return new OpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE};
+    }
+
+    /**
+     * @return the open channel, or null if the file doesn't exist and {@code create} is false
+     */
+    protected FileChannel channel(FileSpan file, boolean create) {
+        FileChannel channel = channels.get(file.index());
+        if(channel != null) return channel;
+
+        ReentrantLock lock = fileLocks[file.index()];
+        lock.lock();
+        try {
+            channel = channels.get(file.index());
+            if(channel != null) return channel;
+            if(!create && !Files.exists(file.path())) return null;
+
+            Files.createDirectories(file.path().toAbsolutePath().getParent());
+            channel = FileChannel.open(file.path(), openOptions());
+            if(channel.size() > file.length()) channel.truncate(file.length());
+
+            channels.set(file.index(), channel);
+            log.debug("Opened {} ({} bytes)", file.path(), file.length());
+            return channel;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open " + file.path(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Runs for every open file just before its channel is closed. */
+    protected void beforeClose(FileSpan file, FileChannel channel) throws IOException {
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for(int i = 0; i < channels.length(); i++) {
+            FileChannel channel = channels.getAndSet(i, null);
+            if(channel == null) continue;
+            try (channel) {
+                beforeClose(layout.files().get(i), channel);
+            } catch (IOException e) {
+                if(failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+        if(failure != null) throw failure;
+    }
+}
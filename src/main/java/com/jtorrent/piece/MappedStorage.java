@@ -0,0 +1,223 @@
+package com.jtorrent.piece;
+
+import com.jtorrent.piece.FileLayout.FileSpan;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Storage through memory-mapped files. Blocks are copied straight into the page cache
+ * and pieces are hashed where they lie, without a read.
+ * <p>
+ * Files are mapped one window at a time, when a window is first touched, and the
+ * windows mapped at once are capped in total size. Going over the cap forces the least
+ * recently used window to disk and lets go of it. Java 21 has no supported way to
+ * unmap a buffer, so the address space is given back once the buffer is collected;
+ * a thread still holding the window can keep using it safely until then.
+ */
+public class MappedStorage extends FileStorage {
+
+    private final long windowSize;
+    private final long maxMappedBytes;
+    private final AtomicReferenceArray<AtomicReferenceArray<Window>> windows;
+
+    // every window currently mapped; guarded by mapLock
+    private final ReentrantLock mapLock = new ReentrantLock();
+    private final List<Window> mapped = new ArrayList<>();
+    private long mappedBytes = 0;
+    private final LongAdder maps = new LongAdder();
+    private final LongAdder unmaps = new LongAdder();
+
+    MappedStorage(FileLayout layout, long windowSize, long maxMappedBytes) throws IOException {
+        super(layout);
+        this.windowSize = Math.clamp(windowSize, 1, Integer.MAX_VALUE);
+        this.maxMappedBytes = maxMappedBytes;
+        this.windows = new AtomicReferenceArray<>(layout.fileCount());
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer src) {
+        int source = src.position();
+        layout.forEachSegment(offset, src.remaining(), (file, fileOffset, done, length) ->
+                forEachWindow(file, fileOffset, length, true, (window, offsetInWindow, windowDone, chunk) ->
+                        window.put(offsetInWindow, src, source + done + windowDone, chunk)));
+    }
+
+    @Override
+    public boolean read(long offset, ByteBuffer dst) {
+        int target = dst.position();
+        boolean present = forEachPresent(offset, dst.remaining(), (window, offsetInWindow, done, chunk) ->
+                dst.put(target + done, window, offsetInWindow, chunk));
+        if(present) dst.position(dst.limit());
+        return present;
+    }
+
+    /** Feeds the range to the digest straight from the mappings. */
+    @Override
+    public boolean digest(long offset, int length, MessageDigest sha1) {
+        return forEachPresent(offset, length, (window, offsetInWindow, done, chunk) ->
+                sha1.update(window.slice(offsetInWindow, chunk)));
+    }
+
+    /** Writes back the dirty pages of every mapped window before syncing the files. */
+    @Override
+    public void sync() throws IOException {
+        List<Window> windows;
+        mapLock.lock();
+        try {
+            windows = new ArrayList<>(mapped);
+        } finally {
+            mapLock.unlock();
+        }
+        // an evicted window was forced on its way out, so a missed one is already clean
+        for(Window window : windows) {
+            window.buffer.force();
+        }
+        super.sync();
+    }
+
+    /** Bytes of the files currently mapped. */
+    public long mappedBytes() {
+        mapLock.lock();
+        try {
+            return mappedBytes;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    public long mapCount() {
+        return maps.sum();
+    }
+
+    /** Windows given up to stay under the cap, plus those released on close. */
+    public long unmapCount() {
+        return unmaps.sum();
+    }
+
+    /**
+     * Runs the action over the windows of a range without creating files.
+     *
+     * @return false, having stopped early, if part of the range lies in a file that doesn't exist yet
+     */
+    private boolean forEachPresent(long offset, int length, WindowAction action) {
+        boolean[] present = {true};
+        layout.forEachSegment(offset, length, (file, fileOffset, done, chunk) -> {
+            if(!present[0]) return;
+            if(channel(file, false) == null) {
+                present[0] = false;
+                return;
+            }
+            forEachWindow(file, fileOffset, chunk, false, (window, offsetInWindow, windowDone, part) ->
+                    action.apply(window, offsetInWindow, done + windowDone, part));
+        });
+        return present[0];
+    }
+
+    private void forEachWindow(FileSpan file, long fileOffset, int length, boolean create, WindowAction action) {
+        FileChannel channel = channel(file, create);
+        int done = 0;
+        while(done < length) {
+            long position = fileOffset + done;
+            int windowIndex = (int) (position / windowSize);
+            int offsetInWindow = (int) (position - windowIndex * windowSize);
+            int chunk = (int) Math.min(length - done, windowSize - offsetInWindow);
+
+            action.apply(window(file, channel, windowIndex), offsetInWindow, done, chunk);
+            done += chunk;
+        }
+    }
+
+    private MappedByteBuffer window(FileSpan file, FileChannel channel, int index) {
+        AtomicReferenceArray<Window> fileWindows = windows.get(file.index());
+        Window window = fileWindows == null ? null : fileWindows.get(index);
+        if(window == null) window = map(file, channel, index);
+        window.lastUsed = System.nanoTime();
+        return window.buffer;
+    }
+
+    private Window map(FileSpan file, FileChannel channel, int index) {
+        mapLock.lock();
+        try {
+            AtomicReferenceArray<Window> fileWindows = windows.get(file.index());
+            if(fileWindows == null) {
+                fileWindows = new AtomicReferenceArray<>((int) ((file.length() + windowSize - 1) / windowSize));
+                windows.set(file.index(), fileWindows);
+            }
+            Window window = fileWindows.get(index);
+            if(window != null) return window;
+
+            long position = index * windowSize;
+            long size = Math.min(windowSize, file.length() - position);
+            while(!mapped.isEmpty() && mappedBytes + size > maxMappedBytes) {
+                evictLeastRecentlyUsed();
+            }
+
+            // mapping past the end grows the file
+            window = new Window(fileWindows, index, channel.map(FileChannel.MapMode.READ_WRITE, position, size));
+            fileWindows.set(index, window);
+            mapped.add(window);
+            mappedBytes += size;
+            maps.increment();
+            return window;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to map " + file.path() + " at window " + index, e);
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    private void evictLeastRecentlyUsed() {
+        Window oldest = mapped.getFirst();
+        for(Window window : mapped) {
+            if(window.lastUsed < oldest.lastUsed) oldest = window;
+        }
+        // dirty pages go out now rather than piling up until close
+        oldest.buffer.force();
+        oldest.owner.set(oldest.index, null);
+        mapped.remove(oldest);
+        mappedBytes -= oldest.buffer.capacity();
+        unmaps.increment();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mapLock.lock();
+        try {
+            while(!mapped.isEmpty()) {
+                evictLeastRecentlyUsed();
+            }
+        } finally {
+            mapLock.unlock();
+        }
+        super.close();
+    }
+
+    private static final class Window {
+        final AtomicReferenceArray<Window> owner;
+        final int index;
+        final MappedByteBuffer buffer;
+        volatile long lastUsed;
+
+        Window(AtomicReferenceArray<Window> owner, int index, MappedByteBuffer buffer) {
+            this.owner = owner;
+            this.index = index;
+            this.buffer = buffer;
+            this.lastUsed = System.nanoTime();
+        }
+    }
+
+    @FunctionalInterface
+    private interface WindowAction {
+        void apply(MappedByteBuffer window, int offsetInWindow, int done, int length);
+    }
+}
@@ -0,0 +1,90 @@
+package com.jtorrent.piece;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Storage that keeps the whole torrent on the heap and never touches the disk, for
+ * tests and payloads small enough to hold in memory. Memory is taken a chunk at a
+ * time as data arrives; nothing survives the process, so there is never anything to
+ * resume from.
+ */
+class MemoryStorage implements Storage {
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private final long totalSize;
+    private final AtomicReferenceArray<ByteBuffer> chunks;
+
+    MemoryStorage(long totalSize) {
+        this.totalSize = totalSize;
+        this.chunks = new AtomicReferenceArray<>(Math.toIntExact((totalSize + CHUNK_SIZE - 1) / CHUNK_SIZE));
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer src) {
+        int source = src.position();
+        forEachChunk(offset, src.remaining(), true, (chunk, offsetInChunk, done, length) ->
+                chunk.put(offsetInChunk, src, source + done, length));
+    }
+
+    @Override
+    public boolean read(long offset, ByteBuffer dst) {
+        int target = dst.position();
+        boolean present = forEachChunk(offset, dst.remaining(), false, (chunk, offsetInChunk, done, length) ->
+                dst.put(target + done, chunk, offsetInChunk, length));
+        if(present) dst.position(dst.limit());
+        return present;
+    }
+
+    @Override
+    public boolean digest(long offset, int length, MessageDigest sha1) {
+        return forEachChunk(offset, length, false, (chunk, offsetInChunk, done, part) ->
+                sha1.update(chunk.slice(offsetInChunk, part)));
+    }
+
+    @Override
+    public void sync() {
+    }
+
+    @Override
+    public ExistingData existingData() {
+        return new ExistingData(0, 0);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /** @return false if part of the range was never written and {@code create} is false */
+    private boolean forEachChunk(long offset, int length, boolean create, ChunkAction action) {
+        if(offset < 0 || length < 0 || offset + length > totalSize) {
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " outside torrent of " + totalSize + " bytes");
+        }
+
+        int done = 0;
+        while(done < length) {
+            long position = offset + done;
+            int index = (int) (position / CHUNK_SIZE);
+            int offsetInChunk = (int) (position - (long) index * CHUNK_SIZE);
+            int part = Math.min(length - done, CHUNK_SIZE - offsetInChunk);
+
+            ByteBuffer chunk = chunks.get(index);
+            if(chunk == null) {
+                if(!create) return false;
+                int size = (int) Math.min(CHUNK_SIZE, totalSize - (long) index * CHUNK_SIZE);
+                chunks.compareAndSet(index, null, ByteBuffer.allocate(size));
+                chunk = chunks.get(index);
+            }
+            action.apply(chunk, offsetInChunk, done, part);
+            done += part;
+        }
+        return true;
+    }
+
+    @FunctionalInterface
+    private interface ChunkAction {
+        void apply(ByteBuffer chunk, int offsetInChunk, int done, int length);
+    }
+}
@@ -0,0 +1,99 @@
+package com.jtorrent.piece;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Verified pieces kept on the heap for uploading, least recently used first out once
+ * the cached bytes pass the limit. Pieces are never changed once cached, and an
+ * evicted piece is only dropped, not reused, so a block still queued on a socket stays
+ * valid after its piece leaves the cache.
+ */
+public class PieceCache {
+
+    private final long maxBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    // access order, so iteration starts at the least recently used piece; guarded by lock
+    private final LinkedHashMap<Integer, ByteBuffer> pieces = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public PieceCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** @return a read-only view of the piece, or null if it isn't cached */
+    public ByteBuffer get(int pieceIndex) {
+        ByteBuffer piece;
+        lock.lock();
+        try {
+            piece = pieces.get(pieceIndex);
+        } finally {
+            lock.unlock();
+        }
+        if(piece == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return piece.asReadOnlyBuffer();
+    }
+
+    public boolean contains(int pieceIndex) {
+        lock.lock();
+        try {
+            return pieces.containsKey(pieceIndex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Caches a piece, which must not be changed afterwards. A piece larger than the whole cache is not kept. */
+    public void put(int pieceIndex, ByteBuffer piece) {
+        int size = piece.remaining();
+        if(size > maxBytes) return;
+
+        lock.lock();
+        try {
+            ByteBuffer previous = pieces.put(pieceIndex, piece);
+            cachedBytes += size - (previous == null ? 0 : previous.remaining());
+            Iterator<Map.Entry<Integer, ByteBuffer>> eldest = pieces.entrySet().iterator();
+            while(cachedBytes > maxBytes) {
+                cachedBytes -= eldest.next().getValue().remaining();
+                eldest.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long cachedBytes() {
+        lock.lock();
+        try {
+            return cachedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /** Share of lookups served from the cache, 0 before the first one. */
+    public double hitRatio() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+}
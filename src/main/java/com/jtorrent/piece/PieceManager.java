@@ -1,16 +1,23 @@
 package com.jtorrent.piece;
 
+import com.jtorrent.config.ClientOptions;
+import com.jtorrent.util.BufferPool;
+import com.jtorrent.util.PooledBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 public class PieceManager implements AutoCloseable{
 
@@ -20,132 +27,484 @@ public class PieceManager implements AutoCloseable{
     private final long totalSize;
     private final List<byte[]> pieceHashes;
 
-    private final Map<Integer, byte[]> pieceData = new ConcurrentHashMap<>();
+    private final PieceWriteMode writeMode;
+    private final BufferPool bufferPool;
+    private final PieceVerifier verifier;
+    private final DiskWriter diskWriter;
+    private final Map<Integer, PooledBuffer> pieceData = new ConcurrentHashMap<>();
+    // bytes of the buffers in pieceData, and of spilled buffers not yet written
+    private final AtomicLong partialBytes = new AtomicLong();
+    private final long partialBudget;
+    // buffered-mode pieces whose blocks go straight to storage since they were spilled
+    private final Set<Integer> spilledPieces = ConcurrentHashMap.newKeySet();
+    // spilled pieces whose buffer is still queued on the disk writer
+    private final Set<Integer> spillingPieces = ConcurrentHashMap.newKeySet();
+    private final LongAdder spills = new LongAdder();
+    private final LongAdder drops = new LongAdder();
     private final Map<Integer, BitSet> progressTracker  = new ConcurrentHashMap<>();
-    private final List<MappedByteBuffer> regions = new ArrayList<>();
 
     private final BitSet verifiedPieces;
     private final BitSet completedPieces;
 
     private long totalDownloaded = 0;
 
-    private final long REGION_SIZE = 1900L * 1024 * 1024;
+    private final FileLayout layout;
+    private final Storage storage;
+    private final FilePriority[] filePriorities;
+    private final List<IntConsumer> verifiedListeners = new CopyOnWriteArrayList<>();
 
-    private final FileChannel fileChannel;
+    public static PieceManager open(int pieceCount, int pieceLength, List<byte[]> pieceHashes, long totalSize, String outputPath) throws IOException {
+        return open(pieceCount, pieceLength, pieceHashes, totalSize, outputPath, ClientOptions.defaults());
+    }
+
+    public static PieceManager open(int pieceCount, int pieceLength, List<byte[]> pieceHashes, long totalSize, String outputPath, ClientOptions options) throws IOException {
+        return open(pieceCount, pieceLength, pieceHashes, FileLayout.singleFile(Paths.get(outputPath), totalSize), options);
+    }
 
-    public PieceManager(int pieceCount, int pieceLength, List<byte[]> pieceHashes, long totalSize, String outputPath) throws IOException {
+    /**
+     * Opens the storage for a download and takes stock of what a previous run left in
+     * it, so pieces already there are never fetched again.
+     */
+    public static PieceManager open(int pieceCount, int pieceLength, List<byte[]> pieceHashes, FileLayout layout, ClientOptions options) throws IOException {
+        PieceManager manager = new PieceManager(pieceCount, pieceLength, pieceHashes, layout, options);
+        // files are only opened once written to or hashed, so this sees them as they were left;
+        // the recheck calls back into the manager, so it waits until construction is done
+        Storage.ExistingData existing = manager.storage.existingData();
+        if(existing.size() > 0) {
+            manager.resume(existing.size(), existing.lastModified(), options);
+        }
+        return manager;
+    }
+
+    private PieceManager(int pieceCount, int pieceLength, List<byte[]> pieceHashes, FileLayout layout, ClientOptions options) throws IOException {
+        this.writeMode = options.pieceWriteMode();
+        this.bufferPool = new BufferPool(pieceLength, options.bufferPoolBytes(), options.directBuffers());
+        this.partialBudget = options.partialPieceBytes();
+        this.verifier = new PieceVerifier(options.hashThreads(), options.hashQueueCapacity());
         this.pieceCount = pieceCount;
         this.pieceLength = pieceLength;
-        this.totalSize = totalSize;
+        this.totalSize = layout.totalSize();
         this.pieceHashes = pieceHashes;
         this.verifiedPieces = new BitSet(pieceCount);
         this.completedPieces = new BitSet(pieceCount);
 
-        this.fileChannel = FileChannel.open(Paths.get(outputPath), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
-        fileChannel.truncate(totalSize);
-        mapRegions();
+        this.layout = layout;
+        this.storage = openStorage(layout, options);
+        // stored blocks may queue up to about as many bytes as the pieces that make the writer backlogged
+        long blockBacklog = (long) Math.max(1, options.diskQueuePieces() * 3 / 4) * pieceLength;
+        this.diskWriter = new DiskWriter(storage, options.diskQueuePieces(), blockBacklog, options.syncPolicy());
+        this.filePriorities = new FilePriority[layout.fileCount()];
+        Arrays.fill(filePriorities, FilePriority.NORMAL);
     }
 
-    private void mapRegions() throws IOException{
-        long position = 0;
+    static Storage openStorage(FileLayout layout, ClientOptions options) throws IOException {
+        return switch (options.storageType()) {
+            case MAPPED -> new MappedStorage(layout, options.mmapWindowBytes(), options.maxMappedBytes());
+            case CHANNEL -> new ChannelStorage(layout);
+            case DIRECT -> new DirectStorage(layout);
+            case MEMORY -> new MemoryStorage(layout.totalSize());
+        };
+    }
 
-        while(position < totalSize) {
-            long chunkSize = Math.min(REGION_SIZE, totalSize - position);
-            MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, chunkSize);
-            regions.add(buffer);
-            position += chunkSize;
+    /**
+     * Marks the pieces already on disk as done, either from a matching resume record
+     * or by rehashing the file. Runs before any peer is contacted.
+     */
+    private void resume(long existingSize, long existingMtime, ClientOptions options) {
+        ResumeRecord record = options.trustResumeRecord() ? ResumeRecord.load(ResumeRecord.pathFor(layout.root())) : null;
+
+        BitSet present;
+        if(record != null && record.matches(existingSize, existingMtime, pieceLength, pieceCount)) {
+            present = record.verified();
+            log.info("Resume record matches {}, skipping recheck", layout.root());
+        } else {
+            log.info("Rechecking {} bytes of existing data in {}", Math.min(existingSize, totalSize), layout.root());
+            present = new PieceRecheck(pieceCount, pieceLength, totalSize, this::hashMatches).run(options.hashThreads());
         }
+
+        for(int i = present.nextSetBit(0); i >= 0 && i < pieceCount; i = present.nextSetBit(i + 1)) {
+            markVerified(i);
+            totalDownloaded += getPieceLength(i);
+        }
+    }
+
+    /** Whether hashing or block writes have fallen behind far enough that the network should stop reading for now. */
+    public boolean isBackedUp() {
+        return verifier.isSaturated() || diskWriter.isBlockBacklogged();
+    }
+
+    /** Whether the piece's blocks are written straight to storage rather than into a buffer. */
+    public boolean storesInPlace(int pieceIndex) {
+        return isInPlace(pieceIndex);
     }
 
-    public synchronized void addBlock(int pieceIndex, int begin, byte[] block) {
-        byte[] piece = pieceData.computeIfAbsent(pieceIndex, k ->  new byte[getPieceLength(pieceIndex)]);
-        System.arraycopy(block, 0, piece, begin, block.length);
+    /**
+     * Whether the buffers of the pieces being downloaded leave room for one more piece.
+     * There is always room for the first, however small the budget, and in mapped mode
+     * for any number.
+     */
+    public boolean hasRoomForPiece() {
+        if(writeMode == PieceWriteMode.MAPPED) return true;
+        long used = partialBytes.get();
+        return used == 0 || used + pieceLength <= partialBudget;
+    }
+
+    /** Takes the buffer for a piece about to be downloaded, so it counts against the budget from now on. */
+    public void openPiece(int pieceIndex) {
+        if(isInPlace(pieceIndex)) return;
+        pieceBuffer(pieceIndex);
+    }
 
-        int blockIndex = begin / BlockTracker.BLOCK_SIZE;
+    /** Whether the piece holds a buffer, i.e. memory that spilling or dropping it would free. */
+    public boolean isBuffered(int pieceIndex) {
+        return pieceData.containsKey(pieceIndex);
+    }
 
+    /**
+     * Writes what the piece has received so far to storage and frees its buffer; the
+     * rest of its blocks go straight to storage and it is hashed there, as in mapped
+     * mode. Blocks not received yet are written as zeros and simply overwritten later.
+     * The buffer leaves the map under its entry lock, so a block copied into it
+     * concurrently is part of the write. The write itself is queued on the disk writer
+     * and never waited for; until it is done, blocks of the piece are refused, so none
+     * can reach storage ahead of it and be overwritten.
+     */
+    public void spillPiece(int pieceIndex) {
+        spillingPieces.add(pieceIndex);
+        spilledPieces.add(pieceIndex);
+        PooledBuffer piece = pieceData.remove(pieceIndex);
+        if(piece == null) {
+            spillingPieces.remove(pieceIndex);
+            return;
+        }
+
+        int capacity = piece.buffer().capacity();
+        // the writer releases the buffer once it is written
+        diskWriter.submitBlock(pieceOffset(pieceIndex), piece, written -> {
+            partialBytes.addAndGet(-capacity);
+            spillingPieces.remove(pieceIndex);
+            if(written) {
+                spills.increment();
+                log.debug("Spilled piece {} to storage", pieceIndex);
+            } else {
+                // what it had received is lost; hashing fails and the piece is downloaded over
+                log.warn("Unable to spill piece {}", pieceIndex);
+            }
+        });
+    }
+
+    /** Frees the piece's buffer and whatever it has received; the caller downloads it again from scratch. */
+    public void dropPiece(int pieceIndex) {
+        spilledPieces.remove(pieceIndex);
+        PooledBuffer piece = takeBuffer(pieceIndex);
+        if(piece != null) {
+            piece.release();
+            drops.increment();
+            log.debug("Dropped partial piece {}", pieceIndex);
+        }
+    }
+
+    /** Bytes held by the buffers of pieces being downloaded. */
+    public long partialBytes() {
+        return partialBytes.get();
+    }
+
+    public long spilledCount() {
+        return spills.sum();
+    }
+
+    public long droppedCount() {
+        return drops.sum();
+    }
+
+    private boolean isInPlace(int pieceIndex) {
+        return writeMode == PieceWriteMode.MAPPED || spilledPieces.contains(pieceIndex);
+    }
+
+    private PooledBuffer pieceBuffer(int pieceIndex) {
+        return pieceData.computeIfAbsent(pieceIndex, k -> {
+            PooledBuffer piece = bufferPool.acquire(getPieceLength(pieceIndex));
+            partialBytes.addAndGet(piece.buffer().capacity());
+            return piece;
+        });
+    }
+
+    /** Removes the piece's buffer from the budget; the caller now owns its reference. */
+    private PooledBuffer takeBuffer(int pieceIndex) {
+        PooledBuffer piece = pieceData.remove(pieceIndex);
+        if(piece != null) partialBytes.addAndGet(-piece.buffer().capacity());
+        return piece;
+    }
+
+    /**
+     * Copies a block into place. Blocks are written by the threads that read them; the
+     * caller makes sure every block is stored once. In buffered mode only a piece opened
+     * with {@link #openPiece} takes blocks, so a late block of a dropped piece can't
+     * bring its buffer back outside the budget. The copy holds the lock of the piece's
+     * map entry, so the buffer can't be dropped or spilled halfway through it.
+     *
+     * @return false if the block was refused because the piece isn't open
+     */
+    public boolean addBlock(int pieceIndex, int begin, ByteBuffer block) {
+        int length = block.remaining();
+        if(isInPlace(pieceIndex)) {
+            if(spillingPieces.contains(pieceIndex)) {
+                log.debug("Refusing block {}:{} of a piece still being spilled", pieceIndex, begin);
+                return false;
+            }
+            // unverified data goes straight to its final place; a bad piece is simply downloaded over
+            storage.write(pieceOffset(pieceIndex) + begin, block);
+        } else {
+            PooledBuffer piece = pieceData.computeIfPresent(pieceIndex, (k, buffer) -> {
+                buffer.buffer().put(begin, block, block.position(), length);
+                return buffer;
+            });
+            if(piece == null) {
+                log.debug("Refusing block {}:{} of a piece that isn't open", pieceIndex, begin);
+                return false;
+            }
+        }
+
+        countDownloaded(pieceIndex, begin / BlockTracker.BLOCK_SIZE, length);
+        return true;
+    }
+
+    /**
+     * Like {@link #addBlock}, except that a block written straight to storage is copied
+     * and written by the disk writer, so the caller never waits on the disk.
+     *
+     * @param onStored called with the outcome, on the writer thread for a block of an
+     *                 in-place piece and on the calling thread otherwise
+     */
+    public void addBlockAsync(int pieceIndex, int begin, ByteBuffer block, Consumer<Boolean> onStored) {
+        if(!isInPlace(pieceIndex) || spillingPieces.contains(pieceIndex)) {
+            onStored.accept(addBlock(pieceIndex, begin, block));
+            return;
+        }
+
+        int length = block.remaining();
+        PooledBuffer copy = bufferPool.acquire(length);
+        copy.buffer().put(0, block, block.position(), length);
+        diskWriter.submitBlock(pieceOffset(pieceIndex) + begin, copy, written -> {
+            if(written) countDownloaded(pieceIndex, begin / BlockTracker.BLOCK_SIZE, length);
+            onStored.accept(written);
+        });
+    }
+
+    private synchronized void countDownloaded(int pieceIndex, int blockIndex, int length) {
         BitSet counted = progressTracker.computeIfAbsent(pieceIndex, k -> new BitSet());
         if(!counted.get(blockIndex)) {
-            totalDownloaded += block.length;
+            totalDownloaded += length;
             counted.set(blockIndex);
         }
     }
 
-    public synchronized boolean verifyAndSavePiece(int pieceIndex) {
-        byte[] piece = pieceData.get(pieceIndex);
-        if(piece == null) return false;
-
-        try {
-            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-            byte[] hash = sha1.digest(piece);
+    /**
+     * Hands a completed piece to the hashing pool. The callback runs once the piece
+     * has been checked and, in buffered mode, written out by the disk writer; a piece
+     * that fails to reach the disk is reported as failed, to be downloaded again.
+     */
+    public void verifyPieceAsync(int pieceIndex, Consumer<Boolean> onVerified) {
+        if(writeMode == PieceWriteMode.MAPPED || spilledPieces.remove(pieceIndex)) {
+            verifier.submit(pieceIndex, sha1 -> hashMatches(pieceIndex, sha1), valid -> {
+                if(valid) {
+                    diskWriter.stored(getPieceLength(pieceIndex));
+                    pieceStored(pieceIndex);
+                } else {
+                    log.warn("The piece {} is corrupted", pieceIndex);
+                }
+                onVerified.accept(valid);
+            });
+            return;
+        }
 
-            if(!Arrays.equals(hash, pieceHashes.get(pieceIndex))) {
+        // a buffered piece leaves the map here and goes back to the pool once written
+        PooledBuffer piece = takeBuffer(pieceIndex);
+        if(piece == null) {
+            onVerified.accept(false);
+            return;
+        }
+        verifier.submit(pieceIndex, sha1 -> bufferMatches(pieceIndex, piece, sha1), valid -> {
+            if(!valid) {
                 log.warn("The piece {} is corrupted", pieceIndex);
-                pieceData.remove(pieceIndex);
-                return false;
+                piece.release();
+                onVerified.accept(false);
+                return;
             }
+            // waits here, on the hashing thread, while the disk writer is full
+            diskWriter.submit(pieceOffset(pieceIndex), piece, written -> {
+                if(written) pieceStored(pieceIndex);
+                onVerified.accept(written);
+            });
+        });
+    }
 
-            writePieceToDisk(pieceIndex, piece);
-            verifiedPieces.set(pieceIndex);
-            completedPieces.set(pieceIndex);
-            pieceData.remove(pieceIndex);
+    private boolean bufferMatches(int pieceIndex, PooledBuffer piece, MessageDigest sha1) {
+        sha1.update(piece.buffer().duplicate());
+        return Arrays.equals(sha1.digest(), pieceHashes.get(pieceIndex));
+    }
 
-            log.info("Piece {} verified and saved. Progress: {}/{}", pieceIndex, verifiedPieces.cardinality(), pieceCount);
-            return true;
-        } catch (Exception e) {
-            log.error("Error while verifying/saving piece {} ", pieceIndex, e);
-            return false;
+    private void pieceStored(int pieceIndex) {
+        int verified = markVerified(pieceIndex);
+        log.info("Piece {} verified and saved. Progress: {}/{}", pieceIndex, verified, pieceCount);
+        if(verified == pieceCount) diskWriter.requestSync();
+        for(IntConsumer listener : verifiedListeners) {
+            listener.accept(pieceIndex);
         }
     }
 
-    public BitSet getCompletedPieces() {
+    /**
+     * Registers a listener told about every piece verified from now on, on the thread
+     * that stored it. Pieces already present at startup are not reported.
+     */
+    public void addVerifiedListener(IntConsumer listener) {
+        verifiedListeners.add(listener);
+    }
+
+    /** Whether the piece is verified and stored, so it can be uploaded. */
+    public synchronized boolean hasPiece(int pieceIndex) {
+        return verifiedPieces.get(pieceIndex);
+    }
+
+    /**
+     * Reads a verified piece from storage into a new heap buffer.
+     *
+     * @return null if the piece isn't there
+     */
+    public ByteBuffer readPiece(int pieceIndex) {
+        ByteBuffer piece = ByteBuffer.allocate(getPieceLength(pieceIndex));
+        return storage.read(pieceOffset(pieceIndex), piece) ? piece.flip() : null;
+    }
+
+    /**
+     * A block of a verified piece as regions of the files holding it.
+     *
+     * @return null if the storage can't hand out its files
+     */
+    public FileRegion[] blockRegions(int pieceIndex, int begin, int length) {
+        return storage.regions(pieceOffset(pieceIndex) + begin, length);
+    }
+
+    /**
+     * Hashes the piece where it lies in storage and compares it with the torrent's hash.
+     */
+    private boolean hashMatches(int pieceIndex, MessageDigest sha1) {
+        return storage.digest(pieceOffset(pieceIndex), getPieceLength(pieceIndex), sha1)
+                && Arrays.equals(sha1.digest(), pieceHashes.get(pieceIndex));
+    }
+
+    private synchronized int markVerified(int pieceIndex) {
+        verifiedPieces.set(pieceIndex);
+        completedPieces.set(pieceIndex);
+        return verifiedPieces.cardinality();
+    }
+
+    public PieceVerifier getVerifier() {
+        return verifier;
+    }
+
+    public DiskWriter getDiskWriter() {
+        return diskWriter;
+    }
+
+    /** True while the disk writer has too much queued for new pieces to be started. */
+    public boolean isWriteBacklogged() {
+        return diskWriter.isBacklogged();
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    public int getPieceCount() {
+        return pieceCount;
+    }
+
+    public synchronized BitSet getCompletedPieces() {
         return (BitSet)completedPieces.clone();
     }
 
-    public boolean isComplete(){
-        return verifiedPieces.cardinality() == pieceCount;
+    /** True once every piece that isn't skipped has been verified. */
+    public synchronized boolean isComplete(){
+        for(int i = verifiedPieces.nextClearBit(0); i < pieceCount; i = verifiedPieces.nextClearBit(i + 1)) {
+            if(piecePriority(i) != FilePriority.SKIP) return false;
+        }
+        return true;
+    }
+
+    public FileLayout getLayout() {
+        return layout;
+    }
+
+    public synchronized void setFilePriority(int fileIndex, FilePriority priority) {
+        Objects.checkIndex(fileIndex, filePriorities.length);
+        filePriorities[fileIndex] = Objects.requireNonNull(priority);
+    }
+
+    public synchronized FilePriority getFilePriority(int fileIndex) {
+        return filePriorities[fileIndex];
+    }
+
+    /** The highest priority among the files the piece overlaps. */
+    public synchronized FilePriority piecePriority(int pieceIndex) {
+        int[] range = layout.filesOf(pieceOffset(pieceIndex), getPieceLength(pieceIndex));
+        FilePriority highest = FilePriority.SKIP;
+        for(int f = range[0]; f <= range[1]; f++) {
+            if(filePriorities[f].compareTo(highest) > 0) highest = filePriorities[f];
+        }
+        return highest;
+    }
+
+    /** Bytes of the pieces that aren't skipped, which is what a download has to fetch. */
+    public synchronized long wantedBytes() {
+        long wanted = 0;
+        for(int i = 0; i < pieceCount; i++) {
+            if(piecePriority(i) != FilePriority.SKIP) wanted += getPieceLength(i);
+        }
+        return wanted;
     }
 
     public double getDownloaded() {
         return (double)totalDownloaded;
     }
 
-    private int getPieceLength(int pieceIndex) {
+    public int getPieceLength(int pieceIndex) {
         if(pieceIndex != pieceCount - 1)
             return pieceLength;
         return (int) (totalSize - (long) pieceLength * (pieceCount - 1));
     }
 
-    private synchronized void writePieceToDisk(int pieceIndex, byte[] piece) throws IOException {
-        long globalOffset = (long) pieceIndex * pieceLength;
-        if(globalOffset * pieceLength > totalSize) throw new IOException("Piece index out of range");
-        int remaining = piece.length;
-        int pieceOffset = 0;
-
-        while(remaining > 0) {
-            int regionIndex = (int) (globalOffset / REGION_SIZE);
-            long regionOffset = regionIndex * REGION_SIZE;
-
-            int offsetInRegion = (int) (globalOffset - regionOffset);
-
-            MappedByteBuffer region = regions.get(regionIndex);
-            int writable = Math.min(remaining, (int) (REGION_SIZE - offsetInRegion));
-
-            region.position(offsetInRegion);
-            region.put(piece, pieceOffset, writable);
+    private long pieceOffset(int pieceIndex) {
+        return (long) pieceIndex * pieceLength;
+    }
 
-            remaining -= writable;
-            pieceOffset += writable;
-            globalOffset += writable;
+    private void saveResumeRecord() {
+        Path path = ResumeRecord.pathFor(layout.root());
+        try {
+            BitSet verified;
+            synchronized (this) {
+                verified = (BitSet) verifiedPieces.clone();
+            }
+            Storage.ExistingData existing = storage.existingData();
+            new ResumeRecord(existing.size(), existing.lastModified(), pieceLength, pieceCount, verified).save(path);
+        } catch (IOException e) {
+            log.warn("Unable to write resume record {}", path, e);
         }
-
-        log.debug("Piece {} written to disk at offset {} ({} bytes)", pieceIndex, pieceOffset, pieceLength);
     }
 
     @Override
     public void close() throws Exception {
-        for(MappedByteBuffer region : regions)
-            region.force();
-        fileChannel.close();
+        verifier.close();
+        diskWriter.close();
+        pieceData.values().forEach(PooledBuffer::release);
+        pieceData.clear();
+        partialBytes.set(0);
+        storage.close();
+        saveResumeRecord();
         log.info("PieceManager closed and file flushed to disk");
     }
 }
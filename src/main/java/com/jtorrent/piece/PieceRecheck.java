@@ -0,0 +1,118 @@
+package com.jtorrent.piece;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serial;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hashes the data already on disk to find the pieces that don't need downloading.
+ * The piece range is split fork-join style into contiguous runs of about
+ * {@link #LEAF_BYTES}, so every worker reads its part of the file sequentially.
+ */
+class PieceRecheck {
+
+    private static final Logger log = LoggerFactory.getLogger(PieceRecheck.class);
+
+    private static final long LEAF_BYTES = 32L * 1024 * 1024;
+    private static final int REPORT_STEPS = 10;
+
+    interface PieceHasher {
+        boolean matches(int pieceIndex, MessageDigest sha1);
+    }
+
+    private final int pieceCount;
+    private final int pieceLength;
+    private final long totalSize;
+    private final int leafPieces;
+    private final PieceHasher hasher;
+
+    private final BitSet valid;
+    private final AtomicInteger checked = new AtomicInteger();
+    private final AtomicInteger nextReport = new AtomicInteger(1);
+    private final AtomicLong validBytes = new AtomicLong();
+
+    PieceRecheck(int pieceCount, int pieceLength, long totalSize, PieceHasher hasher) {
+        this.pieceCount = pieceCount;
+        this.pieceLength = pieceLength;
+        this.totalSize = totalSize;
+        this.leafPieces = (int) Math.max(1, LEAF_BYTES / pieceLength);
+        this.hasher = hasher;
+        this.valid = new BitSet(pieceCount);
+    }
+
+    /**
+     * Runs the recheck on {@code threads} workers and blocks until every piece is hashed.
+     *
+     * @return the pieces whose data on disk matches their hash
+     */
+    BitSet run(int threads) {
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new Range(0, pieceCount));
+        } finally {
+            pool.shutdown();
+        }
+
+        long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        log.info("Recheck finished: {}/{} pieces present, {} MiB read in {} ms ({} MiB/s)",
+                valid.cardinality(), pieceCount, totalSize >> 20, elapsedMs, (totalSize >> 20) * 1000 / elapsedMs);
+        return valid;
+    }
+
+    long validBytes() {
+        return validBytes.get();
+    }
+
+    private void check(int pieceIndex, long pieceSize) {
+        if(hasher.matches(pieceIndex, PieceVerifier.digest())) {
+            synchronized (valid) {
+                valid.set(pieceIndex);
+            }
+            validBytes.addAndGet(pieceSize);
+        }
+        report(checked.incrementAndGet());
+    }
+
+    private void report(int done) {
+        int step;
+        while((long) done * REPORT_STEPS >= (long) (step = nextReport.get()) * pieceCount) {
+            if(nextReport.compareAndSet(step, step + 1)) {
+                log.info("Recheck {}% ({}/{} pieces)", step * 100 / REPORT_STEPS, done, pieceCount);
+            }
+        }
+    }
+
+    private final class Range extends RecursiveAction {
+        // RecursiveAction is Serializable; ranges never are serialized, this only keeps -Xlint:serial quiet
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        Range(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= leafPieces) {
+                for(int i = from; i < to; i++) {
+                    check(i, Math.min(pieceLength, totalSize - (long) i * pieceLength));
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Range(from, mid), new Range(mid, to));
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.jtorrent.piece;
+
+import com.jtorrent.util.NonBlockingThread;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Hashes completed pieces on a fixed pool of platform threads so the thread that
+ * received the last block never waits on SHA-1. Each worker keeps its own digest.
+ * The queue is bounded; when it is full the submitting thread hashes the piece
+ * itself, which throttles the download instead of letting work pile up. A thread
+ * that must not block, such as a selector loop, never does: its piece waits for room
+ * on a virtual thread instead, and {@link #isSaturated()} tells it to stop reading.
+ */
+public class PieceVerifier implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(PieceVerifier.class);
+
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    });
+
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder verified = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder handedOff = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    public PieceVerifier(int threads, int queueCapacity) {
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> Thread.ofPlatform().name("piece-hasher-" + counter.incrementAndGet()).daemon().unstarted(r),
+                this::rejected);
+    }
+
+    private void rejected(Runnable task, ThreadPoolExecutor executor) {
+        if(executor.isShutdown()) {
+            ((Hashing) task).abandon();
+            return;
+        }
+        if(!NonBlockingThread.isCurrent()) {
+            task.run();
+            return;
+        }
+        handedOff.increment();
+        Thread.startVirtualThread(() -> {
+            try {
+                executor.getQueue().put(task);
+                // shut down meanwhile, the workers may be gone before they take it
+                if(executor.isShutdown() && executor.remove(task)) ((Hashing) task).abandon();
+            } catch (InterruptedException e) {
+                ((Hashing) task).abandon();
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    /**
+     * Queues a piece for hashing. A piece that can't be hashed any more because the
+     * verifier shut down is reported as not verified, so its callback still runs.
+     *
+     * @param task   computes the piece digest with the digest it is given and reports whether it matched
+     * @param onDone called on the hashing thread with the outcome
+     */
+    public void submit(int pieceIndex, Verification task, Consumer<Boolean> onDone) {
+        queued.incrementAndGet();
+        executor.execute(new Hashing(pieceIndex, task, onDone, System.nanoTime()));
+    }
+
+    /** This thread's SHA-1 digest, reset and ready for a new piece. */
+    static MessageDigest digest() {
+        MessageDigest sha1 = SHA1.get();
+        sha1.reset();
+        return sha1;
+    }
+
+    /** Whether the queue is full, so the next piece would have to wait or be hashed by its submitter. */
+    public boolean isSaturated() {
+        return executor.getQueue().remainingCapacity() == 0;
+    }
+
+    /** Pieces from non-blocking threads that found the queue full and waited for room elsewhere. */
+    public long handedOffCount() {
+        return handedOff.sum();
+    }
+
+    /** Pieces submitted but not yet verified, including the ones being hashed. */
+    public int queueDepth() {
+        return queued.get();
+    }
+
+    public long verifiedCount() {
+        return verified.sum();
+    }
+
+    public long failedCount() {
+        return failed.sum();
+    }
+
+    public double averageLatencyMillis() {
+        long count = verified.sum() + failed.sum();
+        return count == 0 ? 0 : totalLatencyNanos.sum() / (count * 1_000_000.0);
+    }
+
+    public double maxLatencyMillis() {
+        return maxLatencyNanos.get() / 1_000_000.0;
+    }
+
+    private void record(long latencyNanos, boolean valid) {
+        if(valid) verified.increment();
+        else failed.increment();
+        totalLatencyNanos.add(latencyNanos);
+        maxLatencyNanos.accumulateAndGet(latencyNanos, Math::max);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if(!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("{} piece verifications still running at shutdown", queued.get());
+                abandonQueued();
+            }
+        } catch (InterruptedException e) {
+            abandonQueued();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void abandonQueued() {
+        for(Runnable task : executor.shutdownNow()) {
+            ((Hashing) task).abandon();
+        }
+    }
+
+    private final class Hashing implements Runnable {
+
+        private final int pieceIndex;
+        private final Verification task;
+        private final Consumer<Boolean> onDone;
+        private final long submitted;
+
+        Hashing(int pieceIndex, Verification task, Consumer<Boolean> onDone, long submitted) {
+            this.pieceIndex = pieceIndex;
+            this.task = task;
+            this.onDone = onDone;
+            this.submitted = submitted;
+        }
+
+        @Override
+        public void run() {
+            boolean valid = false;
+            try {
+                valid = task.verify(digest());
+            } catch (Exception e) {
+                log.error("Error while verifying piece {}", pieceIndex, e);
+            } finally {
+                queued.decrementAndGet();
+                record(System.nanoTime() - submitted, valid);
+            }
+            onDone.accept(valid);
+        }
+
+        /** Settles a piece that will never be hashed; the callback frees whatever it holds for it. */
+        void abandon() {
+            queued.decrementAndGet();
+            log.debug("Piece {} left unverified, the verifier is shut down", pieceIndex);
+            onDone.accept(false);
+        }
+    }
+
+    @FunctionalInterface
+    public interface Verification {
+        boolean verify(MessageDigest sha1) throws Exception;
+    }
+}
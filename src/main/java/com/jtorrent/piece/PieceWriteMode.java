@@ -0,0 +1,10 @@
+package com.jtorrent.piece;
+
+/**
+ * Where incoming blocks are assembled before a piece is verified.
+ * <ul>
+ *     <li>{@code MAPPED} - blocks are written straight into storage and the piece is hashed in place</li>
+ *     <li>{@code BUFFERED} - blocks are assembled in a pooled buffer and written to storage once the hash matches</li>
+ * </ul>
+ */
+public enum PieceWriteMode { MAPPED, BUFFERED }
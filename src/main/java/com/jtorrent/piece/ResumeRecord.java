@@ -0,0 +1,61 @@
+package com.jtorrent.piece;
+
+import com.jtorrent.bencoder.BDecoder;
+import com.jtorrent.bencoder.BEncoder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Bencoded side file recording which pieces were verified when the download last
+ * shut down cleanly, together with the size and modification time the data file had
+ * at that point. If either has changed since, the record no longer describes the file.
+ */
+record ResumeRecord(long fileSize, long lastModified, int pieceLength, int pieceCount, BitSet verified) {
+
+    static Path pathFor(Path dataFile) {
+        return dataFile.resolveSibling(dataFile.getFileName() + ".resume");
+    }
+
+    boolean matches(long fileSize, long lastModified, int pieceLength, int pieceCount) {
+        return this.fileSize == fileSize && this.lastModified == lastModified
+                && this.pieceLength == pieceLength && this.pieceCount == pieceCount;
+    }
+
+    void save(Path path) throws IOException {
+        Map<String, Object> dict = new TreeMap<>();
+        dict.put("file size", fileSize);
+        dict.put("mtime", lastModified);
+        dict.put("piece length", pieceLength);
+        dict.put("piece count", pieceCount);
+        dict.put("verified", new String(verified.toByteArray(), StandardCharsets.ISO_8859_1));
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, BEncoder.encode(dict));
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the record stored at {@code path}, or null if there is none or it can't be read
+     */
+    static ResumeRecord load(Path path) {
+        if(!Files.isRegularFile(path)) return null;
+        try {
+            if(!(new BDecoder(Files.readAllBytes(path)).decode() instanceof Map<?, ?> dict)) return null;
+            return new ResumeRecord(
+                    ((Number) dict.get("file size")).longValue(),
+                    ((Number) dict.get("mtime")).longValue(),
+                    ((Number) dict.get("piece length")).intValue(),
+                    ((Number) dict.get("piece count")).intValue(),
+                    BitSet.valueOf(((String) dict.get("verified")).getBytes(StandardCharsets.ISO_8859_1)));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.jtorrent.piece;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Where a torrent's bytes are kept, addressed as one range over all of its files.
+ * {@link PieceManager} writes blocks and pieces through it and hashes pieces from it;
+ * how the bytes reach the disk, if they do at all, is up to the implementation.
+ * Every method may be called from several threads at once.
+ */
+public interface Storage extends AutoCloseable {
+
+    /** Stores the remaining bytes of {@code src} at {@code offset}; {@code src} isn't moved. */
+    void write(long offset, ByteBuffer src);
+
+    /**
+     * Stores consecutive buffers starting at {@code offset}. The buffers' positions
+     * are not moved.
+     */
+    default void writeGathering(long offset, ByteBuffer... buffers) throws IOException {
+        for(ByteBuffer buffer : buffers) {
+            write(offset, buffer);
+            offset += buffer.remaining();
+        }
+    }
+
+    /**
+     * Fills the remaining space of {@code dst} with the bytes at {@code offset}.
+     *
+     * @return false if part of the range has never been stored
+     */
+    boolean read(long offset, ByteBuffer dst);
+
+    /**
+     * Feeds {@code [offset, offset + length)} to the digest.
+     *
+     * @return false if part of the range has never been stored
+     */
+    boolean digest(long offset, int length, MessageDigest sha1);
+
+    /**
+     * The range as regions of open files, for sending straight from the page cache.
+     *
+     * @return null if the storage has no files to offer or part of the range was never stored
+     */
+    default FileRegion[] regions(long offset, int length) {
+        return null;
+    }
+
+    /** Forces everything stored so far out to the device. */
+    void sync() throws IOException;
+
+    /** Total size and latest modification time of whatever a previous run left behind. */
+    ExistingData existingData() throws IOException;
+
+    @Override
+    void close() throws IOException;
+
+    record ExistingData(long size, long lastModified) {}
+}
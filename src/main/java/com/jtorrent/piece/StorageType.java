@@ -0,0 +1,12 @@
+package com.jtorrent.piece;
+
+/**
+ * How a torrent's bytes are kept; see {@link Storage}.
+ * <ul>
+ *     <li>{@code MAPPED} - memory-mapped files, in windows of bounded total size</li>
+ *     <li>{@code CHANNEL} - positional {@code FileChannel} reads and writes, for hosts where mmap misbehaves</li>
+ *     <li>{@code DIRECT} - direct I/O past the page cache; the file system has to support it</li>
+ *     <li>{@code MEMORY} - on the heap only, for tests and small payloads</li>
+ * </ul>
+ */
+public enum StorageType { MAPPED, CHANNEL, DIRECT, MEMORY }
@@ -0,0 +1,27 @@
+package com.jtorrent.piece;
+
+/**
+ * Decides when stored pieces are forced from the OS's caches to the device. Closing
+ * the torrent, and completing it, always syncs.
+ * <ul>
+ *     <li>{@code PERIODIC} - synced every {@code intervalMillis} while there is unsynced data</li>
+ *     <li>{@code BYTES} - synced once {@code everyBytes} have been stored since the last sync</li>
+ *     <li>{@code COMPLETION} - synced only when the torrent completes or is closed</li>
+ * </ul>
+ */
+public record SyncPolicy(Mode mode, long everyBytes, long intervalMillis) {
+
+    public enum Mode { PERIODIC, BYTES, COMPLETION }
+
+    public static SyncPolicy periodic(long intervalMillis) {
+        return new SyncPolicy(Mode.PERIODIC, 0, intervalMillis);
+    }
+
+    public static SyncPolicy everyBytes(long everyBytes) {
+        return new SyncPolicy(Mode.BYTES, everyBytes, 0);
+    }
+
+    public static SyncPolicy onCompletion() {
+        return new SyncPolicy(Mode.COMPLETION, 0, 0);
+    }
+}
@@ -0,0 +1,103 @@
+package com.jtorrent.scheduler;
+
+import com.jtorrent.piece.BlockTracker;
+
+/**
+ * Sizes one peer's request queue from its bandwidth-delay product. Every answered
+ * request yields a round-trip sample and the delivered bytes feed a rate estimate;
+ * the queue is kept at twice {@code rate * minRtt} worth of blocks, so a fast peer
+ * on a long link is never starved and a slow peer isn't sent requests it will sit on.
+ * The minimum RTT is used rather than the average because with a full pipeline every
+ * sample also includes the time spent queued behind earlier requests.
+ * <p>
+ * Not thread-safe; only the scheduler thread touches it.
+ */
+class PeerPipeline {
+
+    private static final double GAIN = 2.0;
+    private static final int HEADROOM = 2;
+    private static final long MIN_RATE_WINDOW_NANOS = 200_000_000L;
+    private static final long MIN_RTT_WINDOW_NANOS = 10_000_000_000L;
+    private static final double RATE_SMOOTHING = 0.5;
+    private static final double RTT_SMOOTHING = 0.125;
+
+    private final int minDepth;
+    private final int maxDepth;
+    private int depth;
+    private boolean snubbed = false;
+
+    private double smoothedRttNanos = 0;
+    private long minRttNanos = Long.MAX_VALUE;
+    private long previousMinRttNanos = Long.MAX_VALUE;
+    private long minRttWindowStart;
+
+    private double bytesPerSecond = 0;
+    private long rateWindowStart;
+    private long rateWindowBytes = 0;
+    private long bytesReceived = 0;
+
+    PeerPipeline(int initialDepth, int minDepth, int maxDepth) {
+        this.minDepth = minDepth;
+        this.maxDepth = maxDepth;
+        this.depth = Math.clamp(initialDepth, minDepth, maxDepth);
+        long now = System.nanoTime();
+        this.minRttWindowStart = now;
+        this.rateWindowStart = now;
+    }
+
+    void onBlock(long rttNanos, int bytes, long now) {
+        snubbed = false;
+        smoothedRttNanos = smoothedRttNanos == 0 ? rttNanos : smoothedRttNanos + RTT_SMOOTHING * (rttNanos - smoothedRttNanos);
+
+        // keep the minimum over the current and the previous window so it can follow a slower route
+        if(now - minRttWindowStart >= MIN_RTT_WINDOW_NANOS) {
+            previousMinRttNanos = minRttNanos;
+            minRttNanos = Long.MAX_VALUE;
+            minRttWindowStart = now;
+        }
+        minRttNanos = Math.min(minRttNanos, rttNanos);
+
+        rateWindowBytes += bytes;
+        bytesReceived += bytes;
+        long elapsed = now - rateWindowStart;
+        // a rate sample spans a few round trips so a single burst of blocks doesn't skew it
+        if(elapsed >= Math.max(MIN_RATE_WINDOW_NANOS, 4 * minRttNanos)) {
+            double sample = rateWindowBytes * 1e9 / elapsed;
+            bytesPerSecond = bytesPerSecond == 0 ? sample : bytesPerSecond + RATE_SMOOTHING * (sample - bytesPerSecond);
+            rateWindowBytes = 0;
+            rateWindowStart = now;
+            resize();
+        }
+    }
+
+    private void resize() {
+        double rtt = Math.min(minRttNanos, previousMinRttNanos) / 1e9;
+        double bdpBlocks = bytesPerSecond * rtt / BlockTracker.BLOCK_SIZE;
+        depth = Math.clamp((long) Math.ceil(bdpBlocks * GAIN) + HEADROOM, minDepth, maxDepth);
+    }
+
+    /** A snubbed peer is kept to a single request until it delivers again. */
+    int depth() {
+        return snubbed ? 1 : depth;
+    }
+
+    boolean isSnubbed() {
+        return snubbed;
+    }
+
+    void snub() {
+        snubbed = true;
+    }
+
+    double bytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    long bytesReceived() {
+        return bytesReceived;
+    }
+
+    double rttMillis() {
+        return smoothedRttNanos / 1e6;
+    }
+}
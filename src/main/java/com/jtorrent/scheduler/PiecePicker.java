@@ -0,0 +1,151 @@
+package com.jtorrent.scheduler;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Rarest-first piece picker. Pickable pieces are grouped in buckets by how many
+ * connected peers have them, and each bucket is a bitmap indexed by piece, so a have,
+ * a lost peer, taking a piece out or putting it back only flips bits and is O(1).
+ * A pick intersects the peer's bitfield with the buckets from the rarest up, 64 pieces
+ * per step, and so only ever lands on pieces the peer has; it stops in the first
+ * bucket that shares one with the peer.
+ * <p>
+ * Not thread-safe; only the scheduler thread touches it.
+ */
+class PiecePicker {
+
+    private final int pieceCount;
+    private final int words;
+    private final int[] availability;
+    private final BitSet pickable = new BitSet();
+    private final Random random = new Random();
+    // bucketed by availability, allocated when a pickable piece first reaches it
+    private long[][] buckets = new long[8][];
+    private int[] bucketSize = new int[8];
+    private int size;
+
+    /** @param excluded pieces that start out unpickable, usually the ones already done */
+    PiecePicker(int pieceCount, BitSet excluded) {
+        this.pieceCount = pieceCount;
+        this.words = (pieceCount + 63) >>> 6;
+        this.availability = new int[pieceCount];
+
+        for(int piece = 0; piece < pieceCount; piece++) {
+            if(!excluded.get(piece)) add(piece);
+        }
+    }
+
+    void peerHas(int piece) {
+        int a = availability[piece]++;
+        if(!pickable.get(piece)) return;
+
+        leave(a, piece);
+        join(a + 1, piece);
+    }
+
+    void peerLost(int piece) {
+        int a = availability[piece]--;
+        if(a <= 0) {
+            availability[piece] = 0;
+            return;
+        }
+        if(!pickable.get(piece)) return;
+
+        leave(a, piece);
+        join(a - 1, piece);
+    }
+
+    void peerHas(BitSet pieces) {
+        for(int i = pieces.nextSetBit(0); i >= 0 && i < pieceCount; i = pieces.nextSetBit(i + 1)) {
+            peerHas(i);
+        }
+    }
+
+    void peerLost(BitSet pieces) {
+        for(int i = pieces.nextSetBit(0); i >= 0 && i < pieceCount; i = pieces.nextSetBit(i + 1)) {
+            peerLost(i);
+        }
+    }
+
+    /**
+     * Finds the rarest pickable piece the peer has and takes it out of the picker.
+     * Each bucket is searched from a random piece onwards, so peers are not all handed
+     * pieces of equal rarity in index order and don't converge on the same ones.
+     *
+     * @return the piece index, or -1 if the peer has nothing that is still needed
+     */
+    int pick(BitSet peerPieces) {
+        if(size == 0) return -1;
+        long[] has = peerPieces.toLongArray();
+        int shared = Math.min(has.length, words);
+        if(shared == 0) return -1;
+
+        // pieces nobody has can't come from this peer either, so the search starts past them
+        for(int a = 1; a < buckets.length; a++) {
+            if(bucketSize[a] == 0) continue;
+            long[] bucket = buckets[a];
+
+            int startWord = random.nextInt(shared);
+            int rotation = random.nextInt(64);
+            for(int k = 0; k < shared; k++) {
+                int w = startWord + k;
+                if(w >= shared) w -= shared;
+                long match = bucket[w] & has[w];
+                if(match == 0) continue;
+
+                int bit = (Long.numberOfTrailingZeros(Long.rotateRight(match, rotation)) + rotation) & 63;
+                int piece = (w << 6) + bit;
+                remove(piece);
+                return piece;
+            }
+        }
+        return -1;
+    }
+
+    /** Takes a piece out of picking, because it is being downloaded or is done. */
+    void remove(int piece) {
+        if(!pickable.get(piece)) return;
+        leave(availability[piece], piece);
+        pickable.clear(piece);
+        size--;
+    }
+
+    /** Makes a piece pickable again, e.g. after its downloader left or its hash failed. */
+    void add(int piece) {
+        if(pickable.get(piece)) return;
+        join(availability[piece], piece);
+        pickable.set(piece);
+        size++;
+    }
+
+    boolean contains(int piece) {
+        return pickable.get(piece);
+    }
+
+    /** Pieces still waiting to be picked. */
+    int size() {
+        return size;
+    }
+
+    int availability(int piece) {
+        return availability[piece];
+    }
+
+    private void join(int a, int piece) {
+        if(a >= buckets.length) {
+            int length = Math.max(a + 1, buckets.length * 2);
+            buckets = Arrays.copyOf(buckets, length);
+            bucketSize = Arrays.copyOf(bucketSize, length);
+        }
+        if(buckets[a] == null) buckets[a] = new long[words];
+        buckets[a][piece >>> 6] |= 1L << piece;
+        bucketSize[a]++;
+    }
+
+    private void leave(int a, int piece) {
+        buckets[a][piece >>> 6] &= ~(1L << piece);
+        bucketSize[a]--;
+    }
+}
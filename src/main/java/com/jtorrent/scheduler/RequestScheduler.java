@@ -1,118 +1,942 @@
 package com.jtorrent.scheduler;
 
+import com.jtorrent.config.ClientOptions;
+import com.jtorrent.peer.Peer;
 import com.jtorrent.peer.PeerConnection;
 import com.jtorrent.peer.PeerMessageBuilder;
+import com.jtorrent.piece.AbandonPolicy;
 import com.jtorrent.piece.Block;
 import com.jtorrent.piece.BlockTracker;
 import com.jtorrent.piece.PieceManager;
+import com.jtorrent.scheduler.SchedulerEvent.*;
+import com.jtorrent.util.HashedWheelTimer;
+import com.jtorrent.util.HashedWheelTimer.Timeout;
+import com.jtorrent.util.MpscRingBuffer;
+import com.jtorrent.util.NonBlockingThread;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
+import static com.jtorrent.util.Buffers.allocate;
+
+/**
+ * Decides which blocks to request from which peer. All of its state belongs to one
+ * scheduler thread: peer, timer and hashing threads only post {@link SchedulerEvent}s
+ * to a bounded ring, and the scheduler thread applies them in order and sends the
+ * resulting requests. The one exception is block data, which is only valid while the
+ * reader's callback runs, so the reading thread stores it and hands in the outcome.
+ * <p>
+ * Request refills are batched: handlers only mark a peer as wanting more, and each
+ * marked peer's pipeline is topped up once after the events waiting in the ring have
+ * been applied.
+ * <p>
+ * Peer threads wait for room when the ring is full, but selector threads must not:
+ * their events go to an unbounded overflow queue instead, and {@link #isBackedUp()}
+ * tells them to stop reading until the scheduler has caught up, which keeps that
+ * queue short.
+ */
 public class RequestScheduler {
 
-    private static final int PIPELINE_DEPTH = 10;
+    private static final long SNUB_CHECK_INTERVAL_SECONDS = 5;
+    private static final int DRAIN_BATCH = 256;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long STATS_TIMEOUT_SECONDS = 5;
+    // in streaming mode, peers at least this fraction as fast as the fastest one count as fast
+    private static final double FAST_PEER_SHARE = 0.5;
 
+    private final ClientOptions options;
     private final BlockTracker blockTracker;
     private final PieceManager pieceManager;
 
-    private final Map<PeerConnection, Integer> inFlight = new ConcurrentHashMap<>();
-    private final Map<PeerConnection, Integer> currentPiece = new ConcurrentHashMap<>();
-    private final Set<Integer> activePieces = ConcurrentHashMap.newKeySet();
+    // scheduler thread only
+    private final Map<PeerConnection, Integer> inFlight = new HashMap<>();
+    private final Map<PeerConnection, Integer> currentPiece = new HashMap<>();
+    private final Set<Integer> activePieces = new HashSet<>();
+    // when each active piece was opened or last received a block, in nanos
+    private final Map<Integer, Long> pieceActivity = new HashMap<>();
+    private final TieredPiecePicker picker;
+    // what each peer has, as far as the picker's availability counts are concerned
+    private final Map<PeerConnection, BitSet> peerPieces = new HashMap<>();
+    // every request sent for a block; more than one only during endgame. Only the
+    // scheduler thread changes it, peer threads look up keys to drop blocks nobody asked for
+    private final Map<Long, List<PendingRequest>> pendingRequests = new ConcurrentHashMap<>();
+    private final Map<PeerConnection, PeerPipeline> pipelines = new HashMap<>();
+    private final Set<PeerConnection> wantRequests = new LinkedHashSet<>();
+    // peers left idle because the open piece limit was reached
+    private final Set<PeerConnection> starved = new HashSet<>();
+    private final int pieceCount;
+    private final BitSet verified;
+    // null unless streaming
+    private final StreamingWindow window;
+    private double fastestRate = 0;
+
+    private final MpscRingBuffer<SchedulerEvent> events;
+    private final int eventsHighWater;
+    // events from selector threads that found the ring full; applied once the ring is empty
+    private final Queue<SchedulerEvent> overflow = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    private final HashedWheelTimer timer = HashedWheelTimer.shared();
+    private final LongAdder timedOutRequests = new LongAdder();
+    private final LongAdder chokeDroppedRequests = new LongAdder();
+    private final LongAdder snubs = new LongAdder();
+    private final LongAdder endgameRequests = new LongAdder();
+    private final LongAdder cancelsSent = new LongAdder();
+    private final LongAdder wastedBytes = new LongAdder();
+    private final LongAdder eventsHandled = new LongAdder();
+    private final LongAdder deadlineMisses = new LongAdder();
+    private final LongAdder streamingDuplicates = new LongAdder();
+    private final LongAdder sharedPieceJoins = new LongAdder();
+    private final LongAdder diskStalls = new LongAdder();
+    private final LongAdder memoryStalls = new LongAdder();
+    private final LongAdder abandonedPieces = new LongAdder();
+    private final LongAdder unrequestedBlocks = new LongAdder();
+    private final LongAdder overflowedEvents = new LongAdder();
+    private volatile int openPieces;
+
+    private volatile Timeout snubCheck;
 
     private static final Logger log = LoggerFactory.getLogger(RequestScheduler.class);
 
     public RequestScheduler(BlockTracker blockTracker, PieceManager pieceManager) {
+        this(blockTracker, pieceManager, ClientOptions.defaults());
+    }
+
+    public RequestScheduler(BlockTracker blockTracker, PieceManager pieceManager, ClientOptions options) {
+        this.options = options;
         this.blockTracker = blockTracker;
         this.pieceManager = pieceManager;
+        this.pieceCount = pieceManager.getPieceCount();
+        this.verified = pieceManager.getCompletedPieces();
+        // pieces restored from disk are done; none of their blocks may be stored again
+        for(int piece = verified.nextSetBit(0); piece >= 0; piece = verified.nextSetBit(piece + 1)) {
+            blockTracker.markPieceReceived(piece);
+        }
+        this.picker = new TieredPiecePicker(pieceCount, verified, pieceManager::piecePriority);
+        this.window = options.streaming()
+                ? new StreamingWindow(pieceCount, pieceManager.getPieceLength(0), options.streamWindowPieces(), options.streamBytesPerSecond())
+                : null;
+        this.events = new MpscRingBuffer<>(options.schedulerQueueCapacity());
+        this.eventsHighWater = Math.max(1, events.capacity() * 3 / 4);
+        Thread.ofPlatform().name("request-scheduler").daemon().start(this::run);
+        scheduleSnubCheck();
+    }
+
+    public void onBitfield(PeerConnection peer, BitSet bitfield) {
+        // the connection keeps updating its own copy as haves arrive
+        post(new Bitfield(peer, (BitSet) bitfield.clone()));
+    }
+
+    public void onHave(PeerConnection peer, int pieceIndex) {
+        post(new Have(peer, pieceIndex));
+    }
+
+    public void onUnchoke(PeerConnection peer) {
+        post(new Unchoke(peer));
+    }
+
+    /**
+     * A choke discards every request the peer still had queued, so they go back to the
+     * pool straight away instead of waiting for their timeouts.
+     */
+    public void onChoke(PeerConnection peer) {
+        post(new Choke(peer));
     }
 
-    public synchronized void onUnchoke(PeerConnection peer) {
-        if(peer.isPeerChoking()) return;
-        requestMore(peer);
+    public void onPeerDisconnected(PeerConnection peer) {
+        post(new Disconnected(peer));
     }
 
-    public synchronized void onBlockReceived(PeerConnection peer, int pieceIndex, int begin, byte[] block) {
+    /**
+     * Stores a block on the calling thread, since {@code block} is only valid for the
+     * duration of the call, and posts the outcome to the scheduler. A block that
+     * completes its piece is also handed to the hashing pool from here. A block nobody
+     * has an open request for, or of a piece we already have, is dropped unread, so a
+     * stray or late message can never overwrite verified data.
+     *
+     * @throws IllegalStateException if the block doesn't match any block of the piece
+     */
+    public void onBlockReceived(PeerConnection peer, int pieceIndex, int begin, ByteBuffer block) {
+        long receivedAt = System.nanoTime();
+        int length = block.remaining();
+        if(!blockTracker.isValidBlock(pieceIndex, begin, length)) {
+            throw new IllegalStateException("Block " + pieceIndex + ":" + begin + "+" + length + " from " + peer.getPeer() + " is not one we request");
+        }
+
         int blockIndex = begin / BlockTracker.BLOCK_SIZE;
+        if(!pendingRequests.containsKey(requestKey(pieceIndex, blockIndex)) || pieceManager.hasPiece(pieceIndex)) {
+            unrequestedBlocks.increment();
+            log.debug("Dropping unrequested block {}:{} from {}", pieceIndex, begin, peer.getPeer());
+            // usually the late copy of a block another peer already delivered; its sender still wants a refill
+            post(new Task(() -> {
+                wastedBytes.add(length);
+                wantRequests.add(peer);
+            }));
+            return;
+        }
+
+        if(!blockTracker.tryReceive(pieceIndex, blockIndex)) {
+            post(new BlockReceived(peer, pieceIndex, blockIndex, length, true, false, receivedAt));
+            return;
+        }
+
+        if(NonBlockingThread.isCurrent() && pieceManager.storesInPlace(pieceIndex)) {
+            // a selector thread must not wait on the disk; the disk writer stores a copy and reports back
+            pieceManager.addBlockAsync(pieceIndex, begin, block,
+                    stored -> blockStored(peer, pieceIndex, blockIndex, length, stored, receivedAt));
+        } else {
+            blockStored(peer, pieceIndex, blockIndex, length, pieceManager.addBlock(pieceIndex, begin, block), receivedAt);
+        }
+    }
+
+    private void blockStored(PeerConnection peer, int pieceIndex, int blockIndex, int length, boolean stored, long receivedAt) {
+        boolean completed = false;
+        if(stored) {
+            completed = blockTracker.blockStored(pieceIndex);
+        } else {
+            // the piece was dropped under us or the write failed; the block goes back to be fetched again
+            blockTracker.forgetBlock(pieceIndex, blockIndex);
+        }
+
+        post(new BlockReceived(peer, pieceIndex, blockIndex, length, !stored, completed, receivedAt));
+        if(completed) {
+            pieceManager.verifyPieceAsync(pieceIndex, valid -> post(new PieceVerified(pieceIndex, valid)));
+        }
+    }
 
-        pieceManager.addBlock(pieceIndex, begin, block);
-        blockTracker.markReceived(pieceIndex, blockIndex);
+    /**
+     * Streaming: moves the read cursor, restarting the window's deadlines from now.
+     *
+     * @throws IllegalStateException if the scheduler isn't in streaming mode
+     */
+    public void moveReadCursor(int pieceIndex) {
+        if(window == null) {
+            throw new IllegalStateException("Streaming is not enabled");
+        }
+        post(new Task(() -> {
+            window.moveTo(pieceIndex, System.nanoTime());
+            log.debug("Read cursor moved to piece {}", pieceIndex);
+        }));
+    }
 
-        if(blockTracker.isPieceComplete(pieceIndex)) {
-            log.info("Piece {} is being verified...", pieceIndex );
-            if(!pieceManager.verifyAndSavePiece(pieceIndex)) {
-                blockTracker.resetPiece(pieceIndex);
+    /**
+     * Re-reads every piece's priority from the piece manager after a file priority
+     * changed. Pieces already being downloaded are finished either way.
+     */
+    public void onPrioritiesChanged() {
+        post(new Task(() -> {
+            for(int piece = 0; piece < pieceCount; piece++) {
+                picker.setPriority(piece, pieceManager.piecePriority(piece));
             }
-            currentPiece.remove(peer);
-            activePieces.remove(pieceIndex);
+            // peers that ran out of work may have some again
+            wantRequests.addAll(peerPieces.keySet());
+        }));
+    }
+
+    /**
+     * Whether the scheduler, or the hashing and disk work behind it, has fallen behind
+     * far enough that selector threads should stop reading for now.
+     */
+    public boolean isBackedUp() {
+        return events.size() >= eventsHighWater || !overflow.isEmpty() || pieceManager.isBackedUp();
+    }
+
+    private void post(SchedulerEvent event) {
+        if(NonBlockingThread.isCurrent()) {
+            // once something overflowed, later events follow it so they stay in order
+            if(!running || (overflow.isEmpty() && events.offer(event))) return;
+            overflow.add(event);
+            overflowedEvents.increment();
+            return;
+        }
+        if(!events.put(event)) {
+            log.debug("Scheduler stopped, dropping {}", event);
         }
+    }
 
-        inFlight.merge(peer, -1, Integer::sum);
-        requestMore(peer);
+    /** The timer wheel must never wait, so a full ring hands the event to a virtual thread instead. */
+    private void postFromTimer(SchedulerEvent event) {
+        if(!events.offer(event) && running) {
+            Thread.startVirtualThread(() -> post(event));
+        }
     }
 
-    public void onPeerDisconnected(PeerConnection peer) {
+    private void run() {
+        while(running) {
+            int handled = events.drain(this::handle, DRAIN_BATCH);
+            if(handled < DRAIN_BATCH) {
+                // the ring is empty, so everything that overflowed is older than what comes next
+                handled += drainOverflow();
+            }
+            eventsHandled.add(handled);
+            if(handled > 0 && !starved.isEmpty()) {
+                // a piece may have completed or blocks may have been freed; let idle peers look again
+                wantRequests.addAll(starved);
+                starved.clear();
+            }
+            sendRequests();
+            openPieces = activePieces.size();
+            if(handled == 0) events.await(IDLE_PARK_NANOS);
+        }
+    }
+
+    private int drainOverflow() {
+        int handled = 0;
+        SchedulerEvent event;
+        while(handled < DRAIN_BATCH && (event = overflow.poll()) != null) {
+            handle(event);
+            handled++;
+        }
+        return handled;
+    }
+
+    private void handle(SchedulerEvent event) {
+        try {
+            switch (event) {
+                case Bitfield e -> handleBitfield(e.peer(), e.pieces());
+                case Have e -> handleHave(e.peer(), e.pieceIndex());
+                case Choke e -> handleChoke(e.peer());
+                case Unchoke e -> wantRequests.add(e.peer());
+                case Disconnected e -> handleDisconnect(e.peer());
+                case BlockReceived e -> handleBlock(e);
+                case RequestTimedOut e -> handleRequestTimeout(e.key(), e.peer());
+                case PieceVerified e -> handlePieceVerified(e.pieceIndex(), e.valid());
+                case Task e -> e.action().run();
+            }
+        } catch (Exception e) {
+            log.error("Scheduler failed to handle {}", event, e);
+        }
+    }
+
+    private void sendRequests() {
+        if(wantRequests.isEmpty()) return;
+        if(window != null) {
+            fastestRate = 0;
+            for(PeerPipeline pipeline : pipelines.values()) {
+                fastestRate = Math.max(fastestRate, pipeline.bytesPerSecond());
+            }
+        }
+        for(PeerConnection peer : wantRequests) {
+            try {
+                requestMore(peer);
+            } catch (Exception e) {
+                log.error("Unable to send requests to {}", peer.getPeer(), e);
+            }
+        }
+        wantRequests.clear();
+    }
+
+    private void handleBitfield(PeerConnection peer, BitSet bitfield) {
+        BitSet counted = peerPieces.computeIfAbsent(peer, p -> new BitSet());
+        bitfield.andNot(counted);
+        counted.or(bitfield);
+        picker.peerHas(bitfield);
+    }
+
+    private void handleHave(PeerConnection peer, int pieceIndex) {
+        BitSet counted = peerPieces.computeIfAbsent(peer, p -> new BitSet());
+        if(counted.get(pieceIndex)) return;
+        counted.set(pieceIndex);
+        picker.peerHas(pieceIndex);
+    }
+
+    private void handleChoke(PeerConnection peer) {
+        int dropped = dropRequests(peer);
+        chokeDroppedRequests.add(dropped);
+        inFlight.remove(peer);
+        // the piece stays active; its remaining blocks can be taken over by any other peer
+        currentPiece.remove(peer);
+        wantRequests.remove(peer);
+        if(dropped > 0) {
+            log.debug("{} choked us with {} requests outstanding, returned to the pool", peer.getPeer(), dropped);
+        }
+    }
+
+    private void handleBlock(BlockReceived event) {
+        PeerConnection peer = event.peer();
+        int pieceIndex = event.pieceIndex();
+
+        List<PendingRequest> requests = pendingRequests.remove(requestKey(pieceIndex, event.blockIndex()));
+        if(requests != null) {
+            for(PendingRequest request : requests) {
+                request.timeout().cancel();
+                inFlight.merge(request.peer(), -1, Integer::sum);
+                if(request.peer() == peer) {
+                    pipeline(peer).onBlock(event.receivedAt() - request.sentAt(), event.length(), event.receivedAt());
+                } else {
+                    cancel(request);
+                }
+            }
+        }
+
+        if(!event.duplicate()) pieceActivity.put(pieceIndex, event.receivedAt());
+
+        if(event.duplicate()) {
+            wastedBytes.add(event.length());
+            log.debug("Ignoring duplicate block {} of piece {} from {}", event.blockIndex(), pieceIndex, peer.getPeer());
+        } else if(event.completedPiece()) {
+            log.info("Piece {} is being verified...", pieceIndex);
+            // the piece stays active until its hash is known, so nobody picks it up meanwhile
+            currentPiece.remove(peer, pieceIndex);
+        }
+
+        wantRequests.add(peer);
+    }
+
+    private void handlePieceVerified(int pieceIndex, boolean valid) {
+        activePieces.remove(pieceIndex);
+        pieceActivity.remove(pieceIndex);
+        if(valid) {
+            verified.set(pieceIndex);
+            if(window != null && pieceIndex >= window.cursor() && System.nanoTime() > window.deadline(pieceIndex)) {
+                deadlineMisses.increment();
+            }
+        } else {
+            blockTracker.resetPiece(pieceIndex);
+            picker.add(pieceIndex);
+        }
+    }
+
+    private void handleDisconnect(PeerConnection peer) {
         inFlight.remove(peer);
+        pipelines.remove(peer);
+        wantRequests.remove(peer);
+        starved.remove(peer);
+        dropRequests(peer);
+
         Integer piece = currentPiece.remove(peer);
-        if(piece != null) {
-            activePieces.remove(piece);
+        // a piece others are working on, have requests out for, or that has data already, stays open to be finished
+        if(piece != null && !currentPiece.containsValue(piece) && blockTracker.receivedCount(piece) == 0
+                && !hasPendingRequests(piece) && activePieces.remove(piece)) {
+            pieceActivity.remove(piece);
+            pieceManager.dropPiece(piece);
+            picker.add(piece);
+        }
+
+        BitSet counted = peerPieces.remove(peer);
+        if(counted != null) {
+            picker.peerLost(counted);
+        }
+    }
+
+    /** Whether any peer still has a request out for a block of the piece, e.g. an endgame or streaming duplicate. */
+    private boolean hasPendingRequests(int piece) {
+        for(int blockIndex = 0; blockIndex < blockTracker.blockCount(piece); blockIndex++) {
+            List<PendingRequest> requests = pendingRequests.get(requestKey(piece, blockIndex));
+            if(requests != null && !requests.isEmpty()) return true;
         }
+        return false;
     }
 
-    public void requestMore(PeerConnection peer) {
-        if(peer.isPeerChoking()) return;
+    private int dropRequests(PeerConnection peer) {
+        int dropped = 0;
+        Iterator<List<PendingRequest>> entries = pendingRequests.values().iterator();
+        while(entries.hasNext()) {
+            List<PendingRequest> requests = entries.next();
+            PendingRequest request = removeRequest(requests, peer);
+            if(request == null) continue;
+            request.timeout().cancel();
+            dropped++;
+            // the block only goes back to the pool if no other peer was asked for it too
+            if(requests.isEmpty()) {
+                entries.remove();
+                blockTracker.releaseBlock(request.block().pieceIndex(), request.block().blockIndex());
+            }
+        }
+        return dropped;
+    }
 
-        int outstanding = inFlight.getOrDefault(peer, 0);
+    private void scheduleSnubCheck() {
+        snubCheck = timer.schedule(() -> postFromTimer(new Task(() -> {
+            checkSnubbed();
+            abandonIdlePieces();
+            scheduleSnubCheck();
+        })), SNUB_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
 
-        while(outstanding < PIPELINE_DEPTH) {
-            int piece = currentPiece.computeIfAbsent(peer, p -> pickPiece(peer.getBitfield()));
-            if(piece == -1) {
-                piece = pickPiece(peer.getBitfield());
-                if(piece == -1) return;
-                currentPiece.put(peer, piece);
+    /**
+     * Marks peers whose oldest outstanding request has waited longer than the snub
+     * timeout. Their pipeline shrinks to one request, their piece is released to the
+     * others, and their blocks become requestable elsewhere while the original
+     * requests stay open in case the data does turn up.
+     */
+    private void checkSnubbed() {
+        long now = System.nanoTime();
+        long snubNanos = TimeUnit.SECONDS.toNanos(options.snubTimeoutSeconds());
+        for(List<PendingRequest> requests : pendingRequests.values()) {
+            for(PendingRequest request : requests) {
+                if(now - request.sentAt() < snubNanos) continue;
+                PeerPipeline pipeline = pipeline(request.peer());
+                if(pipeline.isSnubbed()) continue;
+                pipeline.snub();
+                snubs.increment();
+                currentPiece.remove(request.peer());
+                log.info("Peer {} snubbed us, routing requests around it", request.peer().getPeer());
             }
+        }
 
-            Block block = blockTracker.nextBlockToRequest(piece);
+        for(List<PendingRequest> requests : pendingRequests.values()) {
+            if(requests.isEmpty() || !allSnubbed(requests)) continue;
+            Block block = requests.getFirst().block();
+            blockTracker.releaseBlock(block.pieceIndex(), block.blockIndex());
+        }
+    }
+
+    private boolean allSnubbed(List<PendingRequest> requests) {
+        for(PendingRequest request : requests) {
+            if(!pipeline(request.peer()).isSnubbed()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Frees the memory of buffered pieces nobody has worked on for a while: no peer is
+     * on them, no block is outstanding and nothing arrived within the abandon timeout.
+     * Depending on the policy the piece is written out as far as it got and finished on
+     * disk, or dropped and downloaded again. Either way it goes back to the picker, so
+     * the next peer that has it picks it up.
+     */
+    private void abandonIdlePieces() {
+        if(activePieces.isEmpty()) return;
+        long now = System.nanoTime();
+        long idleNanos = TimeUnit.SECONDS.toNanos(options.abandonedPieceSeconds());
+        Set<Integer> busy = new HashSet<>(currentPiece.values());
+        for(List<PendingRequest> requests : pendingRequests.values()) {
+            if(!requests.isEmpty()) busy.add(requests.getFirst().block().pieceIndex());
+        }
+
+        Iterator<Integer> pieces = activePieces.iterator();
+        while(pieces.hasNext()) {
+            int piece = pieces.next();
+            if(busy.contains(piece) || !pieceManager.isBuffered(piece) || blockTracker.isPieceComplete(piece)) continue;
+            if(now - pieceActivity.getOrDefault(piece, now) < idleNanos) continue;
+
+            if(options.abandonPolicy() == AbandonPolicy.SPILL) {
+                pieceManager.spillPiece(piece);
+            } else {
+                pieceManager.dropPiece(piece);
+                blockTracker.resetPiece(piece);
+            }
+            pieces.remove();
+            pieceActivity.remove(piece);
+            picker.add(piece);
+            abandonedPieces.increment();
+            log.debug("Abandoned idle piece {} ({})", piece, options.abandonPolicy());
+        }
+    }
+
+    public void shutdown() {
+        Timeout check = snubCheck;
+        if(check != null) check.cancel();
+        running = false;
+        events.close();
+    }
+
+    private void handleRequestTimeout(long key, PeerConnection peer) {
+        List<PendingRequest> requests = pendingRequests.get(key);
+        if(requests == null) return;
+        PendingRequest request = removeRequest(requests, peer);
+        if(request == null) return;
+        timedOutRequests.increment();
+
+        Block block = request.block();
+        if(requests.isEmpty()) {
+            pendingRequests.remove(key);
+            blockTracker.releaseBlock(block.pieceIndex(), block.blockIndex());
+        }
+        inFlight.merge(request.peer(), -1, Integer::sum);
+        log.debug("Request for piece {} offset {} to {} timed out", block.pieceIndex(), block.offset(), request.peer().getPeer());
+
+        wantRequests.add(request.peer());
+    }
+
+    public long timedOutRequests() {
+        return timedOutRequests.sum();
+    }
+
+    public long chokeDroppedRequests() {
+        return chokeDroppedRequests.sum();
+    }
+
+    public long snubCount() {
+        return snubs.sum();
+    }
+
+    /** Duplicate requests sent for blocks already requested from another peer. */
+    public long endgameRequests() {
+        return endgameRequests.sum();
+    }
+
+    public long cancelsSent() {
+        return cancelsSent.sum();
+    }
+
+    /** Bytes of blocks that arrived after another copy had already been received. */
+    public long wastedBytes() {
+        return wastedBytes.sum();
+    }
+
+    /** Streaming: window pieces that were verified after the reader needed them. */
+    public long deadlineMisses() {
+        return deadlineMisses.sum();
+    }
+
+    /** Streaming: extra requests sent for blocks of window pieces about to miss their deadline. */
+    public long streamingDuplicates() {
+        return streamingDuplicates.sum();
+    }
+
+    /** Times a peer joined a piece another peer had started instead of opening a new one. */
+    public long sharedPieceJoins() {
+        return sharedPieceJoins.sum();
+    }
+
+    /** Times a peer was kept from starting a piece because the disk writer was backlogged. */
+    public long diskStalls() {
+        return diskStalls.sum();
+    }
+
+    /** How often a new piece was held back because partial pieces used up their memory budget. */
+    public long memoryStalls() {
+        return memoryStalls.sum();
+    }
+
+    /** Events selector threads queued past the full ring instead of waiting. */
+    public long overflowedEvents() {
+        return overflowedEvents.sum();
+    }
+
+    /** Blocks dropped because no request for them was open or their piece was already verified. */
+    public long unrequestedBlocks() {
+        return unrequestedBlocks.sum();
+    }
+
+    /** Idle partial pieces spilled or dropped to free their memory. */
+    public long abandonedPieces() {
+        return abandonedPieces.sum();
+    }
+
+    /** Pieces partly downloaded or waiting for their hash. */
+    public int openPieces() {
+        return openPieces;
+    }
+
+    /** Events posted but not yet applied by the scheduler thread. */
+    public int queuedEvents() {
+        return events.size();
+    }
+
+    public long eventsHandled() {
+        return eventsHandled.sum();
+    }
+
+    /** Times a thread posting an event found the ring full and had to wait for the scheduler. */
+    public long eventQueueFullWaits() {
+        return events.fullWaitCount();
+    }
+
+    private void requestMore(PeerConnection peer) {
+        if(!peer.isRunning() || peer.isPeerChoking()) return;
+
+        int outstanding = inFlight.getOrDefault(peer, 0);
+        int depth = pipeline(peer).depth();
+        if(outstanding >= depth) return;
+
+        // the whole pipeline refill is encoded into one buffer and written out as one batch,
+        // by the connection's loop or a virtual thread, never by the scheduler thread
+        ByteBuffer requests = allocate((depth - outstanding) * PeerMessageBuilder.REQUEST_LENGTH);
+        fillPipeline(peer, outstanding, depth, requests);
+        if(requests.position() > 0) peer.sendDetached(requests.flip());
+    }
+
+    private void fillPipeline(PeerConnection peer, int outstanding, int depth, ByteBuffer requests) {
+        if(window != null && isFast(peer)) {
+            outstanding = fillAtRisk(peer, outstanding, depth, requests);
+        }
+
+        while(outstanding < depth) {
+            Block block = nextBlock(peer);
             if(block == null) {
-                currentPiece.remove(peer);
-                piece =  pickPiece(peer.getBitfield());
-                if(piece == -1) return;
-                currentPiece.put(peer, piece);
-                block = blockTracker.nextBlockToRequest(piece);
-                if(block == null) return;
+                // nothing left to hand out, so help with what others are still fetching
+                fillEndgame(peer, outstanding, depth, requests);
+                return;
             }
 
-            peer.send(PeerMessageBuilder.buildRequest(
+            PeerMessageBuilder.encodeRequest(requests,
                     block.pieceIndex(),
                     block.offset(),
                     block.length()
-            ));
+            );
 
             log.info("Requested for the pieceIndex: {}, offset: {}, length: {}" , block.pieceIndex(), block.offset(), block.length());
+            trackRequest(peer, block);
+
+            outstanding++;
+            inFlight.put(peer, outstanding);
+        }
+    }
+
+    private Block nextBlock(PeerConnection peer) {
+        BitSet pieces = peerPieces.get(peer);
+        if(pieces == null) return null;
+
+        if(window != null) {
+            Block block = nextWindowBlock(peer, pieces);
+            if(block != null) return block;
+        }
+
+        Integer current = currentPiece.get(peer);
+        if(current != null) {
+            Block block = blockTracker.nextBlockToRequest(current);
+            if(block != null) return block;
+            currentPiece.remove(peer);
+        }
+
+        Block block = nextPartialBlock(peer, pieces);
+        if(block != null) return block;
+
+        if(!canOpenPiece()) {
+            starved.add(peer);
+            return null;
+        }
+        int piece = pickPiece(pieces);
+        if(piece != -1) {
+            currentPiece.put(peer, piece);
+            return blockTracker.nextBlockToRequest(piece);
+        }
+        return null;
+    }
+
+    /**
+     * Joins the open piece closest to completion that still has unrequested blocks this
+     * peer can serve. Several peers then pull different blocks of one piece, so a slow
+     * peer holding a large piece no longer decides when it completes.
+     */
+    private Block nextPartialBlock(PeerConnection peer, BitSet pieces) {
+        long now = System.nanoTime();
+        boolean fast = window == null || isFast(peer);
+        List<Integer> candidates = new ArrayList<>();
+        for(int active : activePieces) {
+            if(!pieces.get(active) || blockTracker.isPieceComplete(active)) continue;
+            if(!fast && isUrgent(active, now)) continue;
+            candidates.add(active);
+        }
+        candidates.sort(Comparator.comparingInt(blockTracker::receivedCount).reversed());
+
+        for(int piece : candidates) {
+            Block block = blockTracker.nextBlockToRequest(piece);
+            if(block != null) {
+                currentPiece.put(peer, piece);
+                sharedPieceJoins.increment();
+                return block;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether a new piece may be started. Past the limit peers wait for an open piece
+     * to complete, unless nothing at all is in flight, which would leave them waiting
+     * for good on pieces no connected peer can serve. Nothing new is started while the
+     * disk is behind either; every piece it writes posts its verification, which wakes
+     * the waiting peers again. The same goes for the memory budget of partial pieces,
+     * which frees up as pieces complete or are abandoned.
+     */
+    private boolean canOpenPiece() {
+        if(pieceManager.isWriteBacklogged()) {
+            diskStalls.increment();
+            return false;
+        }
+        if(!pieceManager.hasRoomForPiece()) {
+            memoryStalls.increment();
+            return false;
+        }
+        return activePieces.size() < options.maxOpenPieces() || pendingRequests.isEmpty();
+    }
+
+    /**
+     * Streaming: a block of the first window piece this peer can help with. Window
+     * pieces are shared by every peer that has them rather than owned by one, and
+     * those nearly due are left to the fast peers so a slow one can't hold them up.
+     * Pieces no connected peer has don't take a place in the window.
+     */
+    private Block nextWindowBlock(PeerConnection peer, BitSet pieces) {
+        long now = System.nanoTime();
+        boolean fast = isFast(peer);
+        int wanted = 0;
+        for(int piece = verified.nextClearBit(window.cursor()); piece < pieceCount && wanted < window.size();
+                piece = verified.nextClearBit(piece + 1)) {
+            if(picker.isSkipped(piece) || picker.availability(piece) == 0) continue;
+            wanted++;
+            if(!pieces.get(piece)) continue;
+            if(!fast && isUrgent(piece, now)) continue;
+
+            if(activePieces.add(piece)) {
+                // window pieces are due soon, so like the open piece limit the memory budget doesn't hold them back
+                picker.remove(piece);
+                openPiece(piece);
+            }
+            Block block = blockTracker.nextBlockToRequest(piece);
+            if(block != null) return block;
+        }
+        return null;
+    }
+
+    /**
+     * Streaming: a fast peer also asks for blocks of pieces about to miss their deadline
+     * that are still outstanding with a single other peer. As in endgame, the first
+     * copy to arrive wins and the other request is cancelled.
+     */
+    private int fillAtRisk(PeerConnection peer, int outstanding, int depth, ByteBuffer requests) {
+        BitSet pieces = peerPieces.get(peer);
+        if(pieces == null) return outstanding;
+
+        long now = System.nanoTime();
+        for(int piece = verified.nextClearBit(window.cursor()); piece < window.end() && outstanding < depth;
+                piece = verified.nextClearBit(piece + 1)) {
+            // deadlines only grow along the window, so the pieces at risk all come first
+            if(window.deadline(piece) - now >= StreamingWindow.AT_RISK_NANOS) break;
+            if(!pieces.get(piece)) continue;
+
+            for(int blockIndex = 0; blockIndex < blockTracker.blockCount(piece) && outstanding < depth; blockIndex++) {
+                List<PendingRequest> pending = pendingRequests.get(requestKey(piece, blockIndex));
+                // one extra copy is enough; more would only waste bandwidth
+                if(pending == null || pending.size() != 1 || pending.getFirst().peer() == peer) continue;
+
+                Block block = pending.getFirst().block();
+                PeerMessageBuilder.encodeRequest(requests, block.pieceIndex(), block.offset(), block.length());
+                trackRequest(peer, block);
+                streamingDuplicates.increment();
+                log.debug("Duplicate request for piece {} offset {} to {}, due in {} ms", piece, block.offset(),
+                        peer.getPeer(), (window.deadline(piece) - now) / 1_000_000);
+
+                outstanding++;
+                inFlight.put(peer, outstanding);
+            }
+        }
+        return outstanding;
+    }
+
+    /** Streaming: a window piece due so soon that only fast peers may fetch it. */
+    private boolean isUrgent(int piece, long now) {
+        return window.isNear(piece) && window.deadline(piece) - now < StreamingWindow.URGENT_NANOS;
+    }
+
+    private boolean isFast(PeerConnection peer) {
+        return pipeline(peer).bytesPerSecond() >= FAST_PEER_SHARE * fastestRate;
+    }
+
+    /**
+     * Endgame: once every remaining block has been requested, an idle peer also asks
+     * for blocks that are outstanding elsewhere. Whichever copy lands first wins and the
+     * other requesters get a cancel.
+     */
+    private void fillEndgame(PeerConnection peer, int outstanding, int depth, ByteBuffer requests) {
+        int threshold = options.endgameBlocks();
+        if(threshold <= 0 || picker.size() > 0 || pendingRequests.size() > threshold) return;
+
+        BitSet pieces = peerPieces.get(peer);
+        if(pieces == null) return;
+
+        for(List<PendingRequest> pending : pendingRequests.values()) {
+            if(outstanding >= depth) return;
+            if(pending.isEmpty() || hasRequest(pending, peer)) continue;
+
+            Block block = pending.getFirst().block();
+            if(!pieces.get(block.pieceIndex())) continue;
+
+            PeerMessageBuilder.encodeRequest(requests, block.pieceIndex(), block.offset(), block.length());
+            trackRequest(peer, block);
+            endgameRequests.increment();
+            log.debug("Endgame request for piece {} offset {} to {}", block.pieceIndex(), block.offset(), peer.getPeer());
 
             outstanding++;
             inFlight.put(peer, outstanding);
         }
     }
 
-    public int pickPiece(BitSet bitfield) {
-        if(bitfield == null) return -1;
+    private void cancel(PendingRequest request) {
+        Block block = request.block();
+        ByteBuffer cancel = PeerMessageBuilder.encodeCancel(allocate(PeerMessageBuilder.CANCEL_LENGTH),
+                block.pieceIndex(), block.offset(), block.length()).flip();
+        request.peer().sendDetached(cancel);
+        cancelsSent.increment();
+    }
 
-        BitSet completed = pieceManager.getCompletedPieces();
-        List<Integer> available = new ArrayList<>();
+    private static boolean hasRequest(List<PendingRequest> requests, PeerConnection peer) {
+        for(PendingRequest request : requests) {
+            if(request.peer() == peer) return true;
+        }
+        return false;
+    }
 
-        for(int i = bitfield.nextSetBit(0); i >= 0; i = bitfield.nextSetBit(i + 1)) {
-            if(!completed.get(i) && !activePieces.contains(i)) {
-                available.add(i);
+    private static PendingRequest removeRequest(List<PendingRequest> requests, PeerConnection peer) {
+        Iterator<PendingRequest> iterator = requests.iterator();
+        while(iterator.hasNext()) {
+            PendingRequest request = iterator.next();
+            if(request.peer() == peer) {
+                iterator.remove();
+                return request;
             }
         }
+        return null;
+    }
 
-        if(available.isEmpty()) return -1;
+    private int pickPiece(BitSet pieces) {
+        int selected = picker.pick(pieces);
+        if(selected == -1) return -1;
 
-        int selected = available.get(new Random().nextInt(available.size()));
         activePieces.add(selected);
+        openPiece(selected);
         return selected;
     }
+
+    private void openPiece(int piece) {
+        pieceManager.openPiece(piece);
+        pieceActivity.put(piece, System.nanoTime());
+    }
+
+    private void trackRequest(PeerConnection peer, Block block) {
+        long key = requestKey(block.pieceIndex(), block.blockIndex());
+        Timeout timeout = timer.schedule(() -> postFromTimer(new RequestTimedOut(key, peer)),
+                options.requestTimeoutSeconds(), TimeUnit.SECONDS);
+        pendingRequests.computeIfAbsent(key, k -> new ArrayList<>(1))
+                .add(new PendingRequest(peer, block, timeout, System.nanoTime()));
+    }
+
+    private static long requestKey(int pieceIndex, int blockIndex) {
+        return ((long) pieceIndex << 32) | blockIndex;
+    }
+
+    private PeerPipeline pipeline(PeerConnection peer) {
+        return pipelines.computeIfAbsent(peer, p -> new PeerPipeline(
+                options.initialPipelineDepth(), options.minPipelineDepth(), options.maxPipelineDepth()));
+    }
+
+    /**
+     * Current request queue depth, delivery rate and round-trip time of every connected
+     * peer, taken on the scheduler thread. Empty if the scheduler doesn't answer in time.
+     */
+    public List<PipelineStats> pipelineStats() {
+        CompletableFuture<List<PipelineStats>> snapshot = new CompletableFuture<>();
+        post(new Task(() -> {
+            List<PipelineStats> stats = new ArrayList<>();
+            pipelines.forEach((peer, pipeline) -> stats.add(new PipelineStats(peer.getPeer(),
+                    pipeline.depth(), inFlight.getOrDefault(peer, 0), pipeline.bytesPerSecond(), pipeline.rttMillis(), pipeline.isSnubbed(),
+                    pipeline.bytesReceived())));
+            snapshot.complete(stats);
+        }));
+        return snapshot.completeOnTimeout(List.of(), STATS_TIMEOUT_SECONDS, TimeUnit.SECONDS).join();
+    }
+
+    public record PipelineStats(Peer peer, int depth, int inFlight, double bytesPerSecond, double rttMillis, boolean snubbed, long bytesReceived) {}
+
+    private record PendingRequest(PeerConnection peer, Block block, Timeout timeout, long sentAt) {}
 }
@@ -0,0 +1,36 @@
+package com.jtorrent.scheduler;
+
+import com.jtorrent.peer.PeerConnection;
+
+import java.util.BitSet;
+
+/**
+ * Everything that can change the scheduler's state, posted by peer, timer and
+ * hashing threads and applied one at a time on the scheduler thread.
+ */
+sealed interface SchedulerEvent {
+
+    record Bitfield(PeerConnection peer, BitSet pieces) implements SchedulerEvent {}
+
+    record Have(PeerConnection peer, int pieceIndex) implements SchedulerEvent {}
+
+    record Choke(PeerConnection peer) implements SchedulerEvent {}
+
+    record Unchoke(PeerConnection peer) implements SchedulerEvent {}
+
+    record Disconnected(PeerConnection peer) implements SchedulerEvent {}
+
+    /**
+     * A block that has already been stored, or discarded as a duplicate, by the thread
+     * that read it; only the bookkeeping is left for the scheduler.
+     */
+    record BlockReceived(PeerConnection peer, int pieceIndex, int blockIndex, int length,
+                         boolean duplicate, boolean completedPiece, long receivedAt) implements SchedulerEvent {}
+
+    record RequestTimedOut(long key, PeerConnection peer) implements SchedulerEvent {}
+
+    record PieceVerified(int pieceIndex, boolean valid) implements SchedulerEvent {}
+
+    /** Housekeeping and state snapshots that have to run on the scheduler thread. */
+    record Task(Runnable action) implements SchedulerEvent {}
+}
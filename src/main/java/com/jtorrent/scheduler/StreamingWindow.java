@@ -0,0 +1,70 @@
+package com.jtorrent.scheduler;
+
+/**
+ * The pieces just ahead of a reader's position when a torrent is streamed: the
+ * first few still missing at or after the cursor that some peer can send. Each gets
+ * a deadline, the moment the reader, consuming at the configured rate from where the
+ * cursor was last placed, will need its first byte. The scheduler fetches window
+ * pieces ahead of everything else, gives the urgent ones only to its fastest peers
+ * and duplicates requests for those at risk.
+ * <p>
+ * Not thread-safe; only the scheduler thread touches it.
+ */
+class StreamingWindow {
+
+    /** Pieces due within this long are only given to fast peers. */
+    static final long URGENT_NANOS = 3_000_000_000L;
+    /** Pieces due within this long get their outstanding blocks requested twice. */
+    static final long AT_RISK_NANOS = 1_000_000_000L;
+
+    private final int pieceCount;
+    private final int windowPieces;
+    private final int pieceLength;
+    private final double nanosPerByte;
+
+    private int cursor = 0;
+    private long cursorSetAt;
+
+    StreamingWindow(int pieceCount, int pieceLength, int windowPieces, long bytesPerSecond) {
+        this.pieceCount = pieceCount;
+        this.pieceLength = pieceLength;
+        this.windowPieces = Math.max(1, windowPieces);
+        this.nanosPerByte = 1e9 / Math.max(1, bytesPerSecond);
+        this.cursorSetAt = System.nanoTime();
+    }
+
+    void moveTo(int pieceIndex, long now) {
+        cursor = Math.clamp(pieceIndex, 0, pieceCount);
+        cursorSetAt = now;
+    }
+
+    int cursor() {
+        return cursor;
+    }
+
+    /** How many missing pieces past the cursor make up the window. */
+    int size() {
+        return windowPieces;
+    }
+
+    /**
+     * Whether the piece lies within window size of the cursor. Only these can be urgent
+     * or at risk, so a cursor left behind never turns the rest of the torrent into
+     * either.
+     */
+    boolean isNear(int pieceIndex) {
+        return pieceIndex >= cursor && pieceIndex < end();
+    }
+
+    /** The first piece past the ones {@link #isNear} accepts. */
+    int end() {
+        return (int) Math.min(pieceCount, (long) cursor + windowPieces);
+    }
+
+    /** When the reader will need the piece; the piece under the cursor is due right away. */
+    long deadline(int pieceIndex) {
+        // only the last piece is shorter, and no piece lies beyond it
+        long bytesAhead = (long) Math.max(0, pieceIndex - cursor) * pieceLength;
+        return cursorSetAt + (long) (bytesAhead * nanosPerByte);
+    }
+}
@@ -0,0 +1,123 @@
+package com.jtorrent.scheduler;
+
+import com.jtorrent.piece.FilePriority;
+
+import java.util.BitSet;
+import java.util.function.IntFunction;
+
+/**
+ * Rarest-first within file priorities: one {@link PiecePicker} per priority, asked
+ * from the highest down, so a rare low-priority piece only goes out once nothing of
+ * higher priority is left for the peer. Skipped pieces are held back in a set of
+ * their own and rejoin a picker if their priority is raised again.
+ * <p>
+ * Not thread-safe; only the scheduler thread touches it.
+ */
+class TieredPiecePicker {
+
+    private static final int SKIPPED = -1;
+
+    // indexed by FilePriority.ordinal() - 1, since SKIP has no picker
+    private final PiecePicker[] tiers;
+    private final byte[] tierOf;
+    private final BitSet skipped = new BitSet();
+
+    TieredPiecePicker(int pieceCount, BitSet completed, IntFunction<FilePriority> priority) {
+        FilePriority[] priorities = FilePriority.values();
+        this.tierOf = new byte[pieceCount];
+        BitSet[] outside = new BitSet[priorities.length - 1];
+        for(int t = 0; t < outside.length; t++) {
+            outside[t] = (BitSet) completed.clone();
+        }
+
+        for(int piece = 0; piece < pieceCount; piece++) {
+            int tier = tier(priority.apply(piece));
+            tierOf[piece] = (byte) tier;
+            if(tier == SKIPPED && !completed.get(piece)) skipped.set(piece);
+            for(int t = 0; t < outside.length; t++) {
+                if(t != tier) outside[t].set(piece);
+            }
+        }
+
+        this.tiers = new PiecePicker[outside.length];
+        for(int t = 0; t < tiers.length; t++) {
+            tiers[t] = new PiecePicker(pieceCount, outside[t]);
+        }
+    }
+
+    void peerHas(int piece) {
+        for(PiecePicker picker : tiers) picker.peerHas(piece);
+    }
+
+    void peerLost(int piece) {
+        for(PiecePicker picker : tiers) picker.peerLost(piece);
+    }
+
+    void peerHas(BitSet pieces) {
+        for(PiecePicker picker : tiers) picker.peerHas(pieces);
+    }
+
+    void peerLost(BitSet pieces) {
+        for(PiecePicker picker : tiers) picker.peerLost(pieces);
+    }
+
+    /**
+     * Takes the rarest piece the peer has from the highest priority that has one.
+     *
+     * @return the piece index, or -1 if the peer has nothing that is still wanted
+     */
+    int pick(BitSet peerPieces) {
+        for(int t = tiers.length - 1; t >= 0; t--) {
+            int piece = tiers[t].pick(peerPieces);
+            if(piece != -1) return piece;
+        }
+        return -1;
+    }
+
+    void remove(int piece) {
+        int tier = tierOf[piece];
+        if(tier == SKIPPED) skipped.clear(piece);
+        else tiers[tier].remove(piece);
+    }
+
+    void add(int piece) {
+        int tier = tierOf[piece];
+        if(tier == SKIPPED) skipped.set(piece);
+        else tiers[tier].add(piece);
+    }
+
+    /**
+     * Moves a piece to another priority. A piece that is being downloaded or is done
+     * stays out of picking; it just goes back to the new priority if it's ever added again.
+     */
+    void setPriority(int piece, FilePriority priority) {
+        int tier = tier(priority);
+        int old = tierOf[piece];
+        if(tier == old) return;
+
+        boolean pickable = old == SKIPPED ? skipped.get(piece) : tiers[old].contains(piece);
+        if(pickable) remove(piece);
+        tierOf[piece] = (byte) tier;
+        if(pickable) add(piece);
+    }
+
+    /** Connected peers that have the piece; every tier counts all of them. */
+    int availability(int piece) {
+        return tiers[0].availability(piece);
+    }
+
+    boolean isSkipped(int piece) {
+        return tierOf[piece] == SKIPPED;
+    }
+
+    /** Wanted pieces still waiting to be picked; skipped ones don't count. */
+    int size() {
+        int size = 0;
+        for(PiecePicker picker : tiers) size += picker.size();
+        return size;
+    }
+
+    private static int tier(FilePriority priority) {
+        return priority.ordinal() - 1;
+    }
+}
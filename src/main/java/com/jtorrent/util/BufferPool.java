@@ -0,0 +1,126 @@
+package com.jtorrent.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recycles piece-sized buffers so in-progress pieces don't churn the heap. Buffers are
+ * grouped in power-of-two size classes; a released buffer goes back to its class as
+ * long as the idle bytes held by the pool stay under {@code maxPooledBytes}, otherwise
+ * it is dropped and left to the collector. Requests larger than
+ * {@code maxBufferSize} are served unpooled. A pool built with an alignment hands out
+ * direct buffers whose address and capacity are multiples of it, as direct I/O needs.
+ */
+public final class BufferPool {
+
+    private static final int MIN_SIZE_CLASS = 14;    // 16 KiB, one block
+
+    private final boolean direct;
+    private final int alignment;
+    private final int maxBufferSize;
+    private final long maxPooledBytes;
+    // indexed by size class
+    private final List<Queue<ByteBuffer>> free;
+
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong outstandingBytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public BufferPool(int maxBufferSize, long maxPooledBytes, boolean direct) {
+        this(maxBufferSize, maxPooledBytes, direct, 1);
+    }
+
+    public BufferPool(int maxBufferSize, long maxPooledBytes, boolean direct, int alignment) {
+        if(maxBufferSize <= 0 || maxPooledBytes < 0) {
+            throw new IllegalArgumentException("Invalid pool limits: " + maxBufferSize + "/" + maxPooledBytes);
+        }
+        if(alignment < 1 || Integer.bitCount(alignment) != 1 || (alignment > 1 && !direct)) {
+            throw new IllegalArgumentException("Invalid alignment: " + alignment);
+        }
+        this.direct = direct;
+        this.alignment = alignment;
+        this.maxBufferSize = maxBufferSize;
+        this.maxPooledBytes = maxPooledBytes;
+        int classes = sizeClass(maxBufferSize) + 1;
+        this.free = new ArrayList<>(classes);
+        for(int i = 0; i < classes; i++) {
+            free.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    /**
+     * Hands out a buffer of exactly {@code size} bytes (position 0, limit size) with
+     * one reference held by the caller.
+     */
+    public PooledBuffer acquire(int size) {
+        ByteBuffer buffer = null;
+        if(size <= maxBufferSize) {
+            buffer = free.get(sizeClass(size)).poll();
+        }
+
+        if(buffer != null) {
+            hits.increment();
+            pooledBytes.addAndGet(-buffer.capacity());
+        } else {
+            misses.increment();
+            buffer = allocate(size <= maxBufferSize ? 1 << (sizeClass(size) + MIN_SIZE_CLASS) : size);
+        }
+
+        outstandingBytes.addAndGet(buffer.capacity());
+        buffer.clear().limit(size);
+        return new PooledBuffer(this, buffer);
+    }
+
+    void recycle(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        outstandingBytes.addAndGet(-capacity);
+        if(capacity > maxBufferSize) return;
+
+        if(pooledBytes.addAndGet(capacity) <= maxPooledBytes) {
+            free.get(sizeClass(capacity)).add(buffer);
+        } else {
+            pooledBytes.addAndGet(-capacity);
+        }
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /** Bytes sitting idle in the pool, ready for reuse. */
+    public long pooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /** Bytes currently handed out and not yet released. */
+    public long outstandingBytes() {
+        return outstandingBytes.get();
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        ByteBuffer buffer;
+        if(alignment > 1) {
+            int aligned = (capacity + alignment - 1) & -alignment;
+            buffer = ByteBuffer.allocateDirect(aligned + alignment - 1).alignedSlice(alignment);
+        } else {
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        return buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private static int sizeClass(int size) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(0, bits - MIN_SIZE_CLASS);
+    }
+}
@@ -0,0 +1,205 @@
+package com.jtorrent.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Process-wide timer built on a hashed wheel. Scheduling and cancelling are O(1):
+ * new timeouts go through a lock-free queue and are hashed into a bucket by the
+ * worker thread, and cancelling only flips a flag; the entry is dropped lazily the
+ * next time its bucket is swept.
+ * <p>
+ * Tasks run on the single worker thread and must not block; anything that does I/O
+ * should hand itself off to its own executor or event loop.
+ */
+public final class HashedWheelTimer implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+    private static final HashedWheelTimer SHARED = new HashedWheelTimer("timer-wheel", 100, TimeUnit.MILLISECONDS, 512);
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+
+    private final LongAdder scheduled = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+
+    private long tick = 0;
+    private volatile boolean running = true;
+
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        if(wheelSize <= 0 || (wheelSize & (wheelSize - 1)) != 0) {
+            throw new IllegalArgumentException("Wheel size must be a power of 2: " + wheelSize);
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[wheelSize];
+        for(int i = 0; i < wheelSize; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = wheelSize - 1;
+        this.startTime = System.nanoTime();
+        this.worker = Thread.ofPlatform().name(name).daemon().start(this::run);
+    }
+
+    public static HashedWheelTimer shared() {
+        return SHARED;
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay));
+        Timeout timeout = new Timeout(this, task, deadline);
+        pending.add(timeout);
+        scheduled.increment();
+        return timeout;
+    }
+
+    public long expiredCount() {
+        return expired.sum();
+    }
+
+    public long cancelledCount() {
+        return cancelled.sum();
+    }
+
+    public long pendingCount() {
+        return scheduled.sum() - expired.sum() - cancelled.sum();
+    }
+
+    private void run() {
+        while(running) {
+            long nextTick = tickNanos * (tick + 1);
+            long sleep = nextTick - (System.nanoTime() - startTime);
+            if(sleep > 0) {
+                LockSupport.parkNanos(sleep);
+                continue;
+            }
+
+            transferPending();
+            expireBucket(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        for(int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = pending.poll();
+            if(timeout == null) return;
+            if(timeout.isCancelled()) continue;
+
+            long calculated = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expireBucket(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while(timeout != null) {
+            Timeout next = timeout.next;
+            if(timeout.isCancelled()) {
+                bucket.remove(timeout);
+            } else if(timeout.remainingRounds <= 0) {
+                bucket.remove(timeout);
+                timeout.expire();
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+    public static final class Timeout {
+        private static final int INIT = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(INIT);
+
+        private long remainingRounds;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Marks the timeout cancelled. The entry is unlinked lazily by the worker,
+         * so this never contends with the wheel.
+         */
+        public boolean cancel() {
+            if(!state.compareAndSet(INIT, CANCELLED)) return false;
+            timer.cancelled.increment();
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if(!state.compareAndSet(INIT, EXPIRED)) return;
+            timer.expired.increment();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                log.error("Timer task failed", t);
+            }
+        }
+    }
+
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            if(head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if(timeout.prev != null) timeout.prev.next = timeout.next;
+            else head = timeout.next;
+
+            if(timeout.next != null) timeout.next.prev = timeout.prev;
+            else tail = timeout.prev;
+
+            timeout.next = null;
+            timeout.prev = null;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.jtorrent.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Bounded queue for many producer threads and one consumer thread. Every slot of
+ * the power-of-two ring carries a sequence number telling whose turn it is: a
+ * producer claims the next slot with one CAS on the tail and publishes it by
+ * advancing the slot's sequence, and the consumer frees it the same way, so the
+ * consumer never contends with anyone. When the ring is full producers wait for
+ * the consumer, which pushes back on whoever is flooding it.
+ */
+public final class MpscRingBuffer<E> {
+
+    private static final int SPINS_BEFORE_PARK = 64;
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong();
+    // written by the consumer only, with release semantics so size() can read it from other threads
+    private final AtomicLong head = new AtomicLong();
+
+    private volatile Thread consumer;
+    private volatile boolean consumerWaiting = false;
+    private volatile boolean closed = false;
+
+    private final LongAdder fullWaits = new LongAdder();
+
+    public MpscRingBuffer(int capacity) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds an element if there is room.
+     *
+     * @return false if the ring is full or closed
+     */
+    public boolean offer(E element) {
+        if(closed) return false;
+        long position;
+        int index;
+        while(true) {
+            position = tail.get();
+            index = (int) position & mask;
+            long available = sequences.get(index) - position;
+            if(available == 0) {
+                if(tail.compareAndSet(position, position + 1)) break;
+            } else if(available < 0) {
+                return false;
+            }
+            // another producer took this slot first; try the next one
+        }
+        elements.lazySet(index, element);
+        sequences.set(index, position + 1);
+        if(consumerWaiting) {
+            consumerWaiting = false;
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Adds an element, waiting for the consumer to make room if the ring is full.
+     *
+     * @return false if the ring was closed before the element could be added
+     */
+    public boolean put(E element) {
+        int spins = 0;
+        while(!offer(element)) {
+            if(closed) return false;
+            if(spins == 0) fullWaits.increment();
+            if(++spins < SPINS_BEFORE_PARK) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+            }
+        }
+        return true;
+    }
+
+    /** Takes the oldest element, or returns null if there is none. Consumer thread only. */
+    public E poll() {
+        long position = head.getPlain();
+        int index = (int) position & mask;
+        if(sequences.get(index) != position + 1) return null;
+
+        E element = elements.get(index);
+        elements.lazySet(index, null);
+        sequences.lazySet(index, position + mask + 1);
+        head.setRelease(position + 1);
+        return element;
+    }
+
+    /**
+     * Hands up to {@code limit} elements to {@code action} in order. Consumer thread only.
+     *
+     * @return the number of elements drained
+     */
+    public int drain(Consumer<? super E> action, int limit) {
+        int drained = 0;
+        E element;
+        while(drained < limit && (element = poll()) != null) {
+            action.accept(element);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * Parks the consumer until a producer publishes something or the timeout passes.
+     * Consumer thread only.
+     */
+    public void await(long timeoutNanos) {
+        consumer = Thread.currentThread();
+        consumerWaiting = true;
+        // a producer that published before the flag went up would not have woken us
+        long position = head.getPlain();
+        if(sequences.get((int) position & mask) == position + 1 || closed) {
+            consumerWaiting = false;
+            return;
+        }
+        LockSupport.parkNanos(this, timeoutNanos);
+        consumerWaiting = false;
+    }
+
+    /** Stops accepting elements; producers waiting for room give up. */
+    public void close() {
+        closed = true;
+        Thread waiting = consumer;
+        if(waiting != null) LockSupport.unpark(waiting);
+    }
+
+    /** Approximate number of queued elements. */
+    public int size() {
+        long size = tail.get() - head.getAcquire();
+        return Math.clamp(size, 0, mask + 1);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /** Times a producer found the ring full and had to wait. */
+    public long fullWaitCount() {
+        return fullWaits.sum();
+    }
+}
@@ -0,0 +1,22 @@
+package com.jtorrent.util;
+
+/**
+ * Marks threads that must never wait, such as selector loops. Code that would
+ * otherwise block on a full queue or do slow work inline checks the mark and hands
+ * the work elsewhere instead.
+ */
+public final class NonBlockingThread {
+
+    private static final ThreadLocal<Boolean> MARKED = ThreadLocal.withInitial(() -> false);
+
+    private NonBlockingThread() {}
+
+    /** Marks the calling thread for the rest of its life. */
+    public static void markCurrent() {
+        MARKED.set(true);
+    }
+
+    public static boolean isCurrent() {
+        return MARKED.get();
+    }
+}
@@ -0,0 +1,55 @@
+package com.jtorrent.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A buffer borrowed from a {@link BufferPool}. Every stage that keeps the data past
+ * the current call takes its own reference with {@link #retain()} and gives it back
+ * with {@link #release()}; the buffer returns to the pool when the last one is gone.
+ */
+public final class PooledBuffer {
+
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    /**
+     * The underlying buffer. Callers should use absolute access or a duplicate, since
+     * the position and limit are shared by every holder.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public PooledBuffer retain() {
+        int current;
+        do {
+            current = refCount.get();
+            if(current <= 0) throw new IllegalStateException("Buffer already released");
+        } while(!refCount.compareAndSet(current, current + 1));
+        return this;
+    }
+
+    /**
+     * Drops one reference.
+     *
+     * @return true if this was the last reference and the buffer went back to the pool
+     */
+    public boolean release() {
+        int remaining = refCount.decrementAndGet();
+        if(remaining < 0) throw new IllegalStateException("Buffer released too many times");
+        if(remaining > 0) return false;
+        pool.recycle(buffer);
+        return true;
+    }
+
+    public int refCount() {
+        return refCount.get();
+    }
+}
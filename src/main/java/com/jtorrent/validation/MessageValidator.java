@@ -25,29 +25,43 @@ public class MessageValidator {
         if(message == null || message.length < 4) {
             throw new ValidationException("Invalid message length");
         }
+        return validateAndParse(wrap(message));
+    }
+
+    /**
+     * Validates the frame between the buffer's position and limit using absolute reads only.
+     * The returned payload is the same buffer positioned just after the message id, so no
+     * copy or view is created per message.
+     */
+    public ParsedMessage validateAndParse(ByteBuffer frame) throws ValidationException{
+        if(frame == null || frame.remaining() < 4) {
+            throw new ValidationException("Invalid message length");
+        }
 
-        ByteBuffer buffer = wrap(message);
-        int length = buffer.getInt();
+        int base = frame.position();
+        int length = frame.getInt(base);
 
-        if(length < 0 || length > MAX_MESSAGE_SIZE || message.length != length + 4) {
+        if(length < 0 || length > MAX_MESSAGE_SIZE || frame.remaining() != length + 4) {
             throw new ValidationException("Invalid message size");
         }
 
         if(length == 0)
             return ParsedMessage.keepAlive();
 
-        int messageId = buffer.get() & 0xff;
+        int messageId = frame.get(base + 4) & 0xff;
+        int payload = base + 5;
 
         switch(messageId) {
             case 0, 1, 2, 3 -> validateStateMessage(messageId, length);
-            case 4 -> validateHaveMessage(buffer.duplicate(), length);
-            case 5 -> validateBitfieldMessage(buffer.duplicate(), length);
-            case 6 -> validateRequestMessage(buffer.duplicate(), length);
-            case 7 -> validatePieceMessage(buffer.duplicate(), length);
-            case 8 -> validateCancelMessage(buffer.duplicate(), length);
+            case 4 -> validateHaveMessage(frame, payload, length);
+            case 5 -> validateBitfieldMessage(frame, payload, length);
+            case 6 -> validateRequestMessage(frame, payload, length);
+            case 7 -> validatePieceMessage(frame, payload, length);
+            case 8 -> validateCancelMessage(frame, payload, length);
             default -> throw new ValidationException("Unkown message ID: " + messageId);
         }
-        return new ParsedMessage(messageId, length, buffer);
+        frame.position(payload);
+        return new ParsedMessage(messageId, length, frame);
     }
 
     private void validateStateMessage(int messageId, int length) throws ValidationException {
@@ -55,17 +69,15 @@ public class MessageValidator {
             throw new ValidationException("Invalid length for state message, expected 1, received: " + length);
     }
 
-    private void validateHaveMessage(ByteBuffer buffer, int length) throws ValidationException {
+    private void validateHaveMessage(ByteBuffer frame, int payload, int length) throws ValidationException {
         if(length != 5)
             throw new ValidationException("Invalid length for state message, expected 5, received: " + length);
-        if(buffer.remaining() < 4)
-            throw new ValidationException("HAVE message is too short to contain pieceIndex");
 
-        int pieceIndex = buffer.getInt();
+        int pieceIndex = frame.getInt(payload);
         validatePieceIndex(pieceIndex);
     }
 
-    private void validateBitfieldMessage(ByteBuffer buffer, int length) throws ValidationException {
+    private void validateBitfieldMessage(ByteBuffer frame, int payload, int length) throws ValidationException {
         int expectedBytes = (pieceCount + 7) / 8;
         int actualBytes = length - 1;
 
@@ -73,16 +85,9 @@ public class MessageValidator {
             throw new ValidationException("Invalid bitfield length, expected: " + expectedBytes + "received: " + actualBytes);
         }
 
-        if (buffer.remaining() < actualBytes) {
-            throw new ValidationException("BITFIELD message truncated");
-        }
-
-        byte[] bitfield = new byte[actualBytes];
-        buffer.get(bitfield);
-
         int spareBits = (8 - (pieceCount % 8)) % 8;
         if (spareBits > 0) {
-            int lastByte = bitfield[bitfield.length - 1] & 0xFF;
+            int lastByte = frame.get(payload + actualBytes - 1) & 0xFF;
             int mask = (1 << spareBits) - 1;
 
             if ((lastByte & mask) != 0)
@@ -90,51 +95,39 @@ public class MessageValidator {
         }
     }
 
-    private void validateRequestMessage(ByteBuffer buffer, int length) throws ValidationException {
+    private void validateRequestMessage(ByteBuffer frame, int payload, int length) throws ValidationException {
         if(length != 13) {
             throw new ValidationException("Invalid REQUEST message length, expected 13, got " + length);
         }
 
-        if(buffer.remaining() < 12)
-            throw new ValidationException("REQUEST message too short");
-
-        int index = buffer.getInt();
-        int begin = buffer.getInt();
-        int requestLength = buffer.getInt();
+        int index = frame.getInt(payload);
+        int begin = frame.getInt(payload + 4);
+        int requestLength = frame.getInt(payload + 8);
 
         validatePieceIndex(index);
         validateBlockParameters(index, begin, requestLength);
     }
 
-    private void validatePieceMessage(ByteBuffer buffer, int length) throws ValidationException {
+    private void validatePieceMessage(ByteBuffer frame, int payload, int length) throws ValidationException {
         if(length < 9)
             throw new ValidationException("Invalid PIECE message length, expected 9, got " + length);
 
-        if(buffer.remaining() < 8)
-            throw new ValidationException("PIECE message truncated");
-
-        int index = buffer.getInt();
-        int begin = buffer.getInt();
+        int index = frame.getInt(payload);
+        int begin = frame.getInt(payload + 4);
         int blockLength = length - 9;
 
         validatePieceIndex(index);
         validateBlockParameters(index, begin, blockLength);
-
-        if(buffer.remaining() < blockLength)
-            throw new ValidationException("PIECE message missing block data. Expected: " + blockLength + " bytes, got " + buffer.remaining() + " bytes");
     }
 
-    private void validateCancelMessage(ByteBuffer buffer, int length) throws ValidationException {
+    private void validateCancelMessage(ByteBuffer frame, int payload, int length) throws ValidationException {
         if(length != 13) {
             throw new ValidationException("Invalid CANCEL message length, expected 13, got " + length);
         }
 
-        if(buffer.remaining() < 12)
-            throw new ValidationException("CANCEL message too short");
-
-        int index = buffer.getInt();
-        int begin = buffer.getInt();
-        int cancelLength = buffer.getInt();
+        int index = frame.getInt(payload);
+        int begin = frame.getInt(payload + 4);
+        int cancelLength = frame.getInt(payload + 8);
 
         validatePieceIndex(index);
         validateBlockParameters(index, begin, cancelLength);
@@ -164,7 +157,7 @@ public class MessageValidator {
 
         long pieceSize;
         if(pieceIndex == pieceCount - 1)
-            pieceSize = totalSize - (long) pieceLength * (pieceLength - 1);
+            pieceSize = totalSize - (long) pieceLength * (pieceCount - 1);
         else
             pieceSize = pieceLength;
 
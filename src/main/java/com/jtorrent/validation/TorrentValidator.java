@@ -42,6 +42,10 @@ public class TorrentValidator {
         if(!info.containsKey("name")) throw new ValidationException("Missing file name");
         if(!info.containsKey("length")) throw new ValidationException("Missing file length");
 
+        validateName(info);
+    }
+
+    private static void validateName(Map<String, Object> info) throws ValidationException {
         Object nameObj =  info.get("name");
         if(!(nameObj instanceof String)) {
             throw new IllegalArgumentException("Invalid torrent name");
@@ -53,6 +57,9 @@ public class TorrentValidator {
     public static void validateMultiFileStructure(Map<String, Object> info, long totalSize) throws ValidationException {
         List<Map<String, Object>> files = (List<Map<String, Object>>) info.get("files");
         if(files == null || files.isEmpty()) throw new ValidationException("Missing files");
+        // the name is the directory every file is saved under
+        if(!info.containsKey("name")) throw new ValidationException("Missing directory name");
+        validateName(info);
 
         long calculatedSize = 0;
 
@@ -0,0 +1,173 @@
+package com.jtorrent.peer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Seeds on the loopback interface, each on its own port and each holding every piece
+ * of a random payload. Every accepted connection is served on a virtual thread:
+ * handshake, full bitfield, unchoke, then a block for every request.
+ * <p>
+ * A gated swarm holds back its unchokes until every seed has completed a handshake,
+ * so all the sessions are open at the same time before any data moves.
+ */
+final class LoopbackSwarm implements AutoCloseable {
+
+    private final int pieceLength;
+    private final int pieceCount;
+    private final boolean gated;
+    private final byte[] infoHash = new byte[20];
+    private final byte[] data;
+    private final List<ServerSocket> servers = new ArrayList<>();
+    private final List<Peer> peers = new ArrayList<>();
+
+    private final CountDownLatch handshakes;
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+
+    LoopbackSwarm(int seeds, int pieceLength, int pieceCount, boolean gated) throws IOException {
+        this.pieceLength = pieceLength;
+        this.pieceCount = pieceCount;
+        this.gated = gated;
+        this.data = new byte[pieceLength * pieceCount];
+        this.handshakes = new CountDownLatch(seeds);
+
+        Random random = new Random(42);
+        random.nextBytes(infoHash);
+        random.nextBytes(data);
+
+        for(int i = 0; i < seeds; i++) {
+            ServerSocket server = new ServerSocket(0, seeds, InetAddress.getLoopbackAddress());
+            servers.add(server);
+            peers.add(new Peer(server.getInetAddress().getHostAddress(), server.getLocalPort()));
+            Thread.ofVirtual().name("seed-" + i).start(() -> accept(server));
+        }
+    }
+
+    byte[] infoHash() {
+        return infoHash;
+    }
+
+    byte[] data() {
+        return data;
+    }
+
+    List<Peer> peers() {
+        return peers;
+    }
+
+    List<byte[]> pieceHashes() throws NoSuchAlgorithmException {
+        List<byte[]> hashes = new ArrayList<>();
+        for(int piece = 0; piece < pieceCount; piece++) {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(data, piece * pieceLength, pieceLength);
+            hashes.add(sha1.digest());
+        }
+        return hashes;
+    }
+
+    /** Waits until every seed has completed a handshake; false on timeout. */
+    boolean awaitHandshakes(long timeout, TimeUnit unit) throws InterruptedException {
+        return handshakes.await(timeout, unit);
+    }
+
+    long handshakeCount() {
+        return peers.size() - handshakes.getCount();
+    }
+
+    /** The most connections the seeds held open at once. */
+    int peakSessions() {
+        return peak.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for(ServerSocket server : servers) {
+            server.close();
+        }
+    }
+
+    private void accept(ServerSocket server) {
+        try {
+            while(true) {
+                Socket socket = server.accept();
+                Thread.ofVirtual().start(() -> seed(socket));
+            }
+        } catch (IOException e) {
+            // closed by close()
+        }
+    }
+
+    private void seed(Socket socket) {
+        peak.accumulateAndGet(open.incrementAndGet(), Math::max);
+        try(socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            in.readFully(new byte[68]);
+            out.write(19);
+            out.write("BitTorrent protocol".getBytes(StandardCharsets.US_ASCII));
+            out.write(new byte[8]);
+            out.write(infoHash);
+            out.write(new byte[20]);    // anything but the client's own id
+
+            byte[] bitfield = new byte[(pieceCount + 7) / 8];
+            for(int piece = 0; piece < pieceCount; piece++) {
+                bitfield[piece / 8] |= (byte) (0x80 >>> (piece % 8));
+            }
+            out.writeInt(bitfield.length + 1);
+            out.write(5);
+            out.write(bitfield);
+            out.flush();
+
+            handshakes.countDown();
+            if(gated && !handshakes.await(30, TimeUnit.SECONDS)) return;
+            out.writeInt(1);
+            out.write(1);
+            out.flush();
+
+            while(true) {
+                int length = in.readInt();
+                if(length == 0) continue;
+                int id = in.readUnsignedByte();
+                byte[] payload = new byte[length - 1];
+                in.readFully(payload);
+                if(id != 6) continue;
+
+                ByteBuffer request = ByteBuffer.wrap(payload);
+                int index = request.getInt();
+                int begin = request.getInt();
+                int blockLength = request.getInt();
+                out.writeInt(9 + blockLength);
+                out.write(7);
+                out.writeInt(index);
+                out.writeInt(begin);
+                out.write(data, index * pieceLength + begin, blockLength);
+                if(in.available() == 0) out.flush();
+            }
+        } catch (IOException e) {
+            // the client hung up
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            open.decrementAndGet();
+        }
+    }
+}
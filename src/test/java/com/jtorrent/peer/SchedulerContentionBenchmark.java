@@ -0,0 +1,73 @@
+package com.jtorrent.peer;
+
+import com.jtorrent.config.ClientOptions;
+import com.jtorrent.metaInfo.ClientId;
+import com.jtorrent.piece.StorageType;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Download throughput against 10, 100 and 500 loopback seeds. Every block, have and
+ * unchoke funnels into the one scheduler thread, so this shows how the event ring holds
+ * up as the number of producers grows. Pieces are kept in memory so the disk doesn't
+ * set the pace. Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+class SchedulerContentionBenchmark {
+
+    private static final int PIECE_LENGTH = 256 * 1024;
+    private static final int PIECE_COUNT = 256;
+    private static final int ROUNDS = 3;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void throughputBySwarmSize() throws Exception {
+        download(10);    // warm-up
+
+        for(int peers : new int[]{10, 100, 500}) {
+            long best = Long.MAX_VALUE;
+            for(int round = 0; round < ROUNDS; round++) {
+                best = Math.min(best, download(peers));
+            }
+            double mebibytes = (double) PIECE_LENGTH * PIECE_COUNT / (1024 * 1024);
+            System.out.printf("%3d peers: %7.1f MiB/s (best of %d, %d ms)%n",
+                    peers, mebibytes / (best / 1e9), ROUNDS, TimeUnit.NANOSECONDS.toMillis(best));
+        }
+    }
+
+    /** Downloads the whole payload from {@code peers} seeds and returns how long it took in nanoseconds. */
+    private long download(int peers) throws Exception {
+        ClientOptions options = ClientOptions.defaults()
+                .storageType(StorageType.MEMORY)
+                .peerChurnSeconds(0);
+        // a fresh directory per run, or the next run would resume the finished file
+        Path output = Files.createTempDirectory(directory, "run").resolve("benchmark.bin");
+
+        try(LoopbackSwarm swarm = new LoopbackSwarm(peers, PIECE_LENGTH, PIECE_COUNT, false)) {
+            PeerManager manager = new PeerManager(swarm.infoHash(), ClientId.generateId(), PIECE_COUNT, PIECE_LENGTH,
+                    swarm.data().length, swarm.pieceHashes(), output.toString(), options);
+            try {
+                long start = System.nanoTime();
+                swarm.peers().forEach(manager::openSession);
+                long deadline = start + TimeUnit.MINUTES.toNanos(2);
+                while(!manager.isComplete() && System.nanoTime() < deadline) {
+                    Thread.sleep(5);
+                }
+                long elapsed = System.nanoTime() - start;
+                assertTrue(manager.isComplete(), "download from " + peers + " peers did not complete");
+                return elapsed;
+            } finally {
+                manager.shutdown();
+            }
+        }
+    }
+}
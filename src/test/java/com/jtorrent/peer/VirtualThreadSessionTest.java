@@ -0,0 +1,58 @@
+package com.jtorrent.peer;
+
+import com.jtorrent.config.ClientOptions;
+import com.jtorrent.metaInfo.ClientId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Downloads from a few hundred loopback seeds at once in {@link SessionMode#VIRTUAL_THREAD}
+ * mode, with every session open before any data moves.
+ */
+class VirtualThreadSessionTest {
+
+    private static final int PEERS = 200;
+    private static final int PIECE_LENGTH = 32 * 1024;
+    private static final int PIECE_COUNT = 256;
+
+    @Test
+    @Timeout(value = 2, unit = TimeUnit.MINUTES)
+    void downloadsFromHundredsOfConcurrentSessions(@TempDir Path directory) throws Exception {
+        Path output = directory.resolve("download.bin");
+        ClientOptions options = ClientOptions.defaults()
+                .sessionMode(SessionMode.VIRTUAL_THREAD)
+                .peerChurnSeconds(0);
+
+        try(LoopbackSwarm swarm = new LoopbackSwarm(PEERS, PIECE_LENGTH, PIECE_COUNT, true)) {
+            PeerManager manager = new PeerManager(swarm.infoHash(), ClientId.generateId(), PIECE_COUNT, PIECE_LENGTH,
+                    swarm.data().length, swarm.pieceHashes(), output.toString(), options);
+            try {
+                // loopback peers never pass the tracker filter, so they are opened directly
+                swarm.peers().forEach(manager::openSession);
+
+                assertTrue(swarm.awaitHandshakes(30, TimeUnit.SECONDS), "only " + swarm.handshakeCount() + " sessions completed a handshake");
+                assertTrue(swarm.peakSessions() >= PEERS, "at most " + swarm.peakSessions() + " sessions were open at once");
+                awaitCompletion(manager);
+            } finally {
+                manager.shutdown();
+            }
+            assertArrayEquals(swarm.data(), Files.readAllBytes(output));
+        }
+    }
+
+    private static void awaitCompletion(PeerManager manager) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while(!manager.isComplete() && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(manager.isComplete(), "download did not complete");
+    }
+}
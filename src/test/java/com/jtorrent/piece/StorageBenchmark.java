@@ -0,0 +1,75 @@
+package com.jtorrent.piece;
+
+import com.jtorrent.config.ClientOptions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Write and verify throughput of every {@link StorageType}. A 256 MiB torrent is written
+ * one 16 KiB block at a time and synced, then every piece is hashed back from storage,
+ * the way {@link PieceManager} stores and verifies a download. Verifying right after
+ * writing mostly hits the page cache, except for direct I/O. Run with
+ * {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+class StorageBenchmark {
+
+    private static final int BLOCK = 16 * 1024;
+    private static final int PIECE = 1024 * 1024;
+    private static final int PIECES = 256;
+    private static final int ROUNDS = 3;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void writeAndVerifyThroughput() throws Exception {
+        byte[] block = new byte[BLOCK];
+        new Random(11).nextBytes(block);
+
+        for(StorageType type : StorageType.values()) {
+            if(type == StorageType.DIRECT && !StorageTest.supportsDirectIo(directory)) {
+                System.out.printf("%-7s  skipped, no direct I/O under %s%n", type, directory);
+                continue;
+            }
+
+            long bestWrite = Long.MAX_VALUE;
+            long bestVerify = Long.MAX_VALUE;
+            for(int round = 0; round < ROUNDS; round++) {
+                FileLayout layout = FileLayout.singleFile(directory.resolve(type + "-" + round + ".bin"), (long) PIECE * PIECES);
+                try(Storage storage = PieceManager.openStorage(layout, ClientOptions.defaults().storageType(type))) {
+                    long start = System.nanoTime();
+                    for(long offset = 0; offset < layout.totalSize(); offset += BLOCK) {
+                        storage.write(offset, ByteBuffer.wrap(block));
+                    }
+                    storage.sync();
+                    bestWrite = Math.min(bestWrite, System.nanoTime() - start);
+
+                    start = System.nanoTime();
+                    MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+                    for(int piece = 0; piece < PIECES; piece++) {
+                        assertTrue(storage.digest((long) piece * PIECE, PIECE, sha1));
+                        sha1.digest();
+                    }
+                    bestVerify = Math.min(bestVerify, System.nanoTime() - start);
+                }
+                Files.deleteIfExists(layout.root());
+            }
+            System.out.printf("%-7s  write %7.1f MiB/s  verify %7.1f MiB/s  (best of %d)%n",
+                    type, mebibytesPerSecond(bestWrite), mebibytesPerSecond(bestVerify), ROUNDS);
+        }
+    }
+
+    private static double mebibytesPerSecond(long nanos) {
+        return (double) PIECES * PIECE / (1024 * 1024) / (nanos / 1e9);
+    }
+}
@@ -0,0 +1,178 @@
+package com.jtorrent.piece;
+
+import com.jtorrent.config.ClientOptions;
+import com.jtorrent.metaInfo.TorrentFile;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Round trips through every {@link StorageType} over three files of odd sizes, so that
+ * blocks and pieces straddle file boundaries and the middle file fits inside one block.
+ */
+class StorageTest {
+
+    private static final long[] FILE_SIZES = {70_000, 5_000, 100_003};
+    private static final int BLOCK = 16 * 1024;
+    private static final int PIECE = 4 * BLOCK;
+
+    @TempDir
+    Path directory;
+
+    private final byte[] data = new byte[(int) Arrays.stream(FILE_SIZES).sum()];
+
+    StorageTest() {
+        new Random(7).nextBytes(data);
+    }
+
+    @ParameterizedTest
+    @EnumSource(StorageType.class)
+    void readsBackBlocksWrittenAcrossFiles(StorageType type) throws IOException {
+        try(Storage storage = open(type)) {
+            // last block first, so files are written out of order
+            for(int offset = (data.length - 1) / BLOCK * BLOCK; offset >= 0; offset -= BLOCK) {
+                ByteBuffer block = ByteBuffer.wrap(data, offset, Math.min(BLOCK, data.length - offset));
+                storage.write(offset, block);
+                assertEquals(offset, block.position(), "write moved the source buffer");
+            }
+
+            ByteBuffer all = ByteBuffer.allocate(data.length);
+            assertTrue(storage.read(0, all));
+            assertFalse(all.hasRemaining());
+            assertArrayEquals(data, all.array());
+
+            // a read starting and ending inside different files
+            ByteBuffer span = ByteBuffer.allocate(10_000);
+            assertTrue(storage.read(68_000, span));
+            assertArrayEquals(Arrays.copyOfRange(data, 68_000, 78_000), span.array());
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(StorageType.class)
+    void writesGatheredPiecesAcrossFiles(StorageType type) throws Exception {
+        try(Storage storage = open(type)) {
+            for(int offset = 0; offset < data.length; offset += PIECE) {
+                List<ByteBuffer> blocks = new ArrayList<>();
+                for(int block = offset; block < Math.min(offset + PIECE, data.length); block += BLOCK) {
+                    blocks.add(ByteBuffer.wrap(data, block, Math.min(BLOCK, data.length - block)));
+                }
+                storage.writeGathering(offset, blocks.toArray(ByteBuffer[]::new));
+            }
+            storage.sync();
+
+            ByteBuffer all = ByteBuffer.allocate(data.length);
+            assertTrue(storage.read(0, all));
+            assertArrayEquals(data, all.array());
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(StorageType.class)
+    void digestsPiecesAcrossFiles(StorageType type) throws Exception {
+        try(Storage storage = open(type)) {
+            storage.write(0, ByteBuffer.wrap(data));
+            for(int offset = 0; offset < data.length; offset += PIECE) {
+                int length = Math.min(PIECE, data.length - offset);
+                MessageDigest actual = MessageDigest.getInstance("SHA-1");
+                assertTrue(storage.digest(offset, length, actual));
+
+                MessageDigest expected = MessageDigest.getInstance("SHA-1");
+                expected.update(data, offset, length);
+                assertArrayEquals(expected.digest(), actual.digest(), "piece at " + offset);
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(StorageType.class)
+    void reportsRangesNeverWritten(StorageType type) throws Exception {
+        try(Storage storage = open(type)) {
+            assertFalse(storage.read(60_000, ByteBuffer.allocate(BLOCK)));
+            assertFalse(storage.digest(60_000, BLOCK, MessageDigest.getInstance("SHA-1")));
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = StorageType.class, names = {"MAPPED", "CHANNEL", "DIRECT"})
+    void leavesEachFileItsShareOnClose(StorageType type) throws IOException {
+        FileLayout layout = layout();
+        try(Storage storage = open(type, layout)) {
+            storage.write(0, ByteBuffer.wrap(data));
+        }
+
+        for(FileLayout.FileSpan file : layout.files()) {
+            byte[] expected = Arrays.copyOfRange(data, (int) file.offset(), (int) file.end());
+            assertArrayEquals(expected, Files.readAllBytes(file.path()), file.path().toString());
+        }
+        try(Storage reopened = open(type, layout)) {
+            assertEquals(data.length, reopened.existingData().size());
+            ByteBuffer all = ByteBuffer.allocate(data.length);
+            assertTrue(reopened.read(0, all));
+            assertArrayEquals(data, all.array());
+
+            // the file now ends inside a block, which a write at its tail has to read in first
+            byte[] tail = new byte[1_003];
+            new Random(8).nextBytes(tail);
+            reopened.write(data.length - tail.length, ByteBuffer.wrap(tail));
+            System.arraycopy(tail, 0, data, data.length - tail.length, tail.length);
+        }
+
+        FileLayout.FileSpan last = layout.files().get(layout.files().size() - 1);
+        assertArrayEquals(Arrays.copyOfRange(data, (int) last.offset(), data.length), Files.readAllBytes(last.path()));
+    }
+
+    private Storage open(StorageType type) throws IOException {
+        return open(type, layout());
+    }
+
+    private Storage open(StorageType type, FileLayout layout) throws IOException {
+        if(type == StorageType.DIRECT) {
+            assumeTrue(supportsDirectIo(directory), "file system under " + directory + " has no direct I/O");
+        }
+        return PieceManager.openStorage(layout, ClientOptions.defaults().storageType(type));
+    }
+
+    private FileLayout layout() {
+        List<TorrentFile> files = new ArrayList<>();
+        for(int i = 0; i < FILE_SIZES.length; i++) {
+            files.add(new TorrentFile(List.of("torrent", "file" + i), FILE_SIZES[i]));
+        }
+        return FileLayout.of(directory, files);
+    }
+
+    /** tmpfs and some network file systems refuse O_DIRECT outright. */
+    static boolean supportsDirectIo(Path directory) {
+        if(DirectStorage.DIRECT == null) return false;
+        Path probe = directory.resolve("direct-io-probe");
+        try(FileChannel ignored = FileChannel.open(probe, StandardOpenOption.CREATE, StandardOpenOption.WRITE, DirectStorage.DIRECT)) {
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        } finally {
+            try {
+                Files.deleteIfExists(probe);
+            } catch (IOException ignored) {
+                // only a probe
+            }
+        }
+    }
+}